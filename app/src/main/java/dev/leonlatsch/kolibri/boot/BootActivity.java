@@ -11,12 +11,16 @@ import com.activeandroid.ActiveAndroid;
 import dev.leonlatsch.kolibri.R;
 import dev.leonlatsch.kolibri.boot.jobs.CheckUserAsyncJob;
 import dev.leonlatsch.kolibri.boot.jobs.LoadRemoteConfigAsyncJob;
+import dev.leonlatsch.kolibri.boot.jobs.MigrateSchemaAsyncJob;
 import dev.leonlatsch.kolibri.boot.jobs.UpdateContactsAsyncJob;
 import dev.leonlatsch.kolibri.boot.jobs.ValidateBackendJob;
 import dev.leonlatsch.kolibri.boot.jobs.base.JobResult;
+import dev.leonlatsch.kolibri.database.AvatarStore;
+import dev.leonlatsch.kolibri.database.interfaces.ChatInterface;
 import dev.leonlatsch.kolibri.ui.MainActivity;
 import dev.leonlatsch.kolibri.ui.login.LoginActivity;
 import dev.leonlatsch.kolibri.rest.service.RestServiceFactory;
+import dev.leonlatsch.kolibri.util.BitmapCache;
 
 /**
  * The first Activity to be started.
@@ -33,30 +37,42 @@ public class BootActivity extends AppCompatActivity {
         setContentView(R.layout.activity_boot);
 
         ActiveAndroid.initialize(this);
+        ChatInterface.initialize(this);
+        AvatarStore.initialize(this);
+        BitmapCache.initialize(this);
 
-        new Handler().postDelayed(() -> { // Delay execution for 100 ms to show splash screen
-            JobResult<Void> result = new ValidateBackendJob(this).execute();
-            if (result.isSuccessful()) {
-                RestServiceFactory.initialize(this);
-                new LoadRemoteConfigAsyncJob(this).execute(null);
-                CheckUserAsyncJob job = new CheckUserAsyncJob(this);
-                job.execute(userResult -> new Handler(getApplicationContext().getMainLooper()).post(() -> {
-                    if (userResult.isSuccessful()) {
-                        startActivity(new Intent(getApplicationContext(), MainActivity.class));
-                        new UpdateContactsAsyncJob(this).execute(null);
-                    } else {
-                        startActivity(new Intent(getApplicationContext(), LoginActivity.class));
-                    }
-                    finish();
-                }));
-            } else { // If there is no backend config show the BackendDialog
-                BackendDialog dialog = new BackendDialog(this);
-                dialog.setOnDismissListener(dialogInterface -> {
-                    startActivity(new Intent(getApplicationContext(), BootActivity.class));
-                    finish();
-                });
-                dialog.show();
-            }
-        }, 100);
+        // Before anything reads the database. Delay execution for 100 ms to show splash screen
+        new MigrateSchemaAsyncJob(this).execute(migrationResult -> new Handler(getApplicationContext().getMainLooper())
+                .postDelayed(this::boot, 100));
+    }
+
+    /**
+     * Run the jobs that decide which activity is started next
+     */
+    private void boot() {
+        AvatarStore.getInstance().moveLegacyAvatars(); // On the writer, reloads the cached contacts when done
+        AvatarStore.getInstance().deleteUnreferenced();
+        JobResult<Void> result = new ValidateBackendJob(this).execute();
+        if (result.isSuccessful()) {
+            RestServiceFactory.initialize(this);
+            new LoadRemoteConfigAsyncJob(this).execute(null);
+            CheckUserAsyncJob job = new CheckUserAsyncJob(this);
+            job.execute(userResult -> new Handler(getApplicationContext().getMainLooper()).post(() -> {
+                if (userResult.isSuccessful()) {
+                    startActivity(new Intent(getApplicationContext(), MainActivity.class));
+                    new UpdateContactsAsyncJob(this).execute(null);
+                } else {
+                    startActivity(new Intent(getApplicationContext(), LoginActivity.class));
+                }
+                finish();
+            }));
+        } else { // If there is no backend config show the BackendDialog
+            BackendDialog dialog = new BackendDialog(this);
+            dialog.setOnDismissListener(dialogInterface -> {
+                startActivity(new Intent(getApplicationContext(), BootActivity.class));
+                finish();
+            });
+            dialog.show();
+        }
     }
 }
@@ -9,14 +9,17 @@ import dev.leonlatsch.kolibri.boot.jobs.base.AsyncJob;
 import dev.leonlatsch.kolibri.boot.jobs.base.AsyncJobCallback;
 import dev.leonlatsch.kolibri.boot.jobs.base.JobResult;
 import dev.leonlatsch.kolibri.constants.Responses;
+import dev.leonlatsch.kolibri.database.DatabaseWriter;
 import dev.leonlatsch.kolibri.database.interfaces.ChatInterface;
 import dev.leonlatsch.kolibri.database.interfaces.ContactInterface;
+import dev.leonlatsch.kolibri.database.interfaces.KeyPairInterface;
 import dev.leonlatsch.kolibri.database.interfaces.UserInterface;
 import dev.leonlatsch.kolibri.database.model.User;
 import dev.leonlatsch.kolibri.rest.dto.Container;
 import dev.leonlatsch.kolibri.rest.dto.UserDTO;
 import dev.leonlatsch.kolibri.rest.service.RestServiceFactory;
 import dev.leonlatsch.kolibri.rest.service.UserService;
+import dev.leonlatsch.kolibri.security.CryptoManager;
 import retrofit2.Call;
 import retrofit2.Callback;
 import retrofit2.Response;
@@ -33,6 +36,7 @@ public class CheckUserAsyncJob extends AsyncJob {
     private UserInterface userInterface;
     private ContactInterface contactInterface;
     private ChatInterface chatInterface;
+    private DatabaseWriter databaseWriter;
 
     public CheckUserAsyncJob(Context context) {
         super(context);
@@ -40,6 +44,7 @@ public class CheckUserAsyncJob extends AsyncJob {
         userService = RestServiceFactory.getUserService();
         contactInterface = ContactInterface.getInstance();
         chatInterface = ChatInterface.getInstance();
+        databaseWriter = DatabaseWriter.getInstance();
     }
 
     @Override
@@ -56,17 +61,21 @@ public class CheckUserAsyncJob extends AsyncJob {
                 @Override
                 public void onResponse(Call<Container<UserDTO>> call, Response<Container<UserDTO>> response) {
                     if (response.code() == Responses.CODE_OK) { // Update saved user
-                        userInterface.save(response.body().getContent(), savedUser.getAccessToken());
+                        UserDTO userDto = response.body().getContent();
+                        databaseWriter.submit(() -> userInterface.save(userDto, savedUser.getAccessToken()));
                     } else {
                         // if the saved user is not in the backend
-                        userInterface.delete(savedUser);
-                        contactInterface.deleteAll();
                         chatInterface.deleteAll();
-                        new Handler(getContext().getMainLooper()).post(() -> {
+                        KeyPairInterface.getInstance().clearCache();
+                        CryptoManager.clearKeyCache();
+                        databaseWriter.submit(() -> {
+                            userInterface.delete(savedUser);
+                            contactInterface.deleteAll();
+                        }, () -> new Handler(getContext().getMainLooper()).post(() -> { // Boot again once the user is gone
                             Intent intent = new Intent(getContext(), BootActivity.class);
                             intent.addFlags(Intent.FLAG_ACTIVITY_CLEAR_TOP | Intent.FLAG_ACTIVITY_CLEAR_TASK | Intent.FLAG_ACTIVITY_NEW_TASK);
                             getContext().startActivity(intent);
-                        });
+                        }));
                     }
                 }
 
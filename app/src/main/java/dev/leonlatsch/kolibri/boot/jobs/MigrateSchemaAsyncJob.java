@@ -0,0 +1,43 @@
+package dev.leonlatsch.kolibri.boot.jobs;
+
+import android.content.Context;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.ExecutionException;
+
+import dev.leonlatsch.kolibri.boot.jobs.base.AsyncJob;
+import dev.leonlatsch.kolibri.boot.jobs.base.AsyncJobCallback;
+import dev.leonlatsch.kolibri.boot.jobs.base.JobResult;
+import dev.leonlatsch.kolibri.database.SchemaMigration;
+
+/**
+ * Async job to bring the database schema up to date with the {@link SchemaMigration}.
+ * The result is reported once the migration is committed, so nothing reads the old schema.
+ *
+ * @author Leon Latsch
+ * @since 1.0.0
+ */
+public class MigrateSchemaAsyncJob extends AsyncJob {
+
+    private static final Logger log = LoggerFactory.getLogger(MigrateSchemaAsyncJob.class);
+
+    public MigrateSchemaAsyncJob(Context context) {
+        super(context);
+    }
+
+    @Override
+    protected void run(AsyncJobCallback asyncJobCallback) {
+        JobResult<Void> result = new JobResult<>(false, null);
+        try {
+            SchemaMigration.migrate().get();
+            result.setSuccessful(true);
+        } catch (ExecutionException e) {
+            log.error("Migrating the database failed: " + e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        asyncJobCallback.onResult(result);
+    }
+}
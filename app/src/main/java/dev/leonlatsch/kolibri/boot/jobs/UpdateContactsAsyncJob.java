@@ -1,92 +1,311 @@
 package dev.leonlatsch.kolibri.boot.jobs;
 
 import android.content.Context;
+import android.text.TextUtils;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import dev.leonlatsch.kolibri.boot.jobs.base.AsyncJob;
 import dev.leonlatsch.kolibri.boot.jobs.base.AsyncJobCallback;
 import dev.leonlatsch.kolibri.boot.jobs.base.JobResult;
 import dev.leonlatsch.kolibri.broker.MessageConsumer;
+import dev.leonlatsch.kolibri.constants.Responses;
+import dev.leonlatsch.kolibri.database.AvatarStore;
+import dev.leonlatsch.kolibri.database.DatabaseWriter;
 import dev.leonlatsch.kolibri.database.interfaces.ChatInterface;
 import dev.leonlatsch.kolibri.database.interfaces.ContactInterface;
 import dev.leonlatsch.kolibri.database.interfaces.UserInterface;
 import dev.leonlatsch.kolibri.database.model.Contact;
 import dev.leonlatsch.kolibri.rest.dto.Container;
 import dev.leonlatsch.kolibri.rest.dto.UserDTO;
+import dev.leonlatsch.kolibri.rest.dto.UserUpdateDTO;
+import dev.leonlatsch.kolibri.rest.dto.UserVersionDTO;
+import dev.leonlatsch.kolibri.rest.http.Headers;
 import dev.leonlatsch.kolibri.rest.service.RestServiceFactory;
 import dev.leonlatsch.kolibri.rest.service.UserService;
+import dev.leonlatsch.kolibri.security.CryptoManager;
+import dev.leonlatsch.kolibri.settings.Config;
 import retrofit2.Response;
 
 /**
  * Async job to update the saved contacts.
+ * The known versions are sent with every request, so unchanged users and public keys are answered without a body.
+ * <p>
+ * All contacts are fetched with bulk requests. If the backend has no bulk endpoint, every contact is fetched
+ * on its own with a limited amount of parallel requests. All changes are made on copies of the cached contacts
+ * and saved in one transaction. Cached keys are invalidated and the result is reported only after the commit.
  *
  * @author Leon Latsch
  * @since 1.0.0
  */
 public class UpdateContactsAsyncJob extends AsyncJob {
 
+    private static final Logger log = LoggerFactory.getLogger(UpdateContactsAsyncJob.class);
+
+    private static final String THREAD_NAME = "CONTACT-SYNC-THREAD-";
+    private static final int BULK_SIZE = 100; // Users per bulk request
+    private static final int DEFAULT_PARALLELISM = 4;
+    private static final int CODE_NOT_FOUND = 404;
+
+    /**
+     * Set to false when the backend has no bulk endpoint
+     */
+    private static volatile boolean bulkSupported = true;
+
     private UserInterface userInterface;
     private ContactInterface contactInterface;
     private ChatInterface chatInterface;
+    private DatabaseWriter databaseWriter;
+    private AvatarStore avatarStore;
     private UserService userService;
+    private int parallelism;
 
     public UpdateContactsAsyncJob(Context context) {
         super(context);
         userInterface = UserInterface.getInstance();
         contactInterface = ContactInterface.getInstance();
         chatInterface = ChatInterface.getInstance();
+        databaseWriter = DatabaseWriter.getInstance();
+        avatarStore = AvatarStore.getInstance();
         userService = RestServiceFactory.getUserService();
+        parallelism = Math.max(1, Config.getSharedPreferences(context).getInt(Config.KEY_BACKEND_CONTACT_SYNC_PARALLELISM, DEFAULT_PARALLELISM));
     }
 
     @Override
     protected void run(AsyncJobCallback asyncJobCallback) {
-        List<Contact> contacts = contactInterface.getALl();
+        List<Contact> contacts = contactInterface.getALl(); // Copies, the cache only changes when they are saved
+        List<Contact> changed = new ArrayList<>();
+        Set<String> changedPublicKeys = Collections.synchronizedSet(new HashSet<>());
 
         boolean success = true;
-        int contactsUpdated = 0;
+        int synced = 0;
 
-        for (Contact contact : contacts) {
-            try {
-                Response<Container<UserDTO>> contactResponse = userService.get(userInterface.getAccessToken(), contact.getUid()).execute();
-                Response<Container<String>> publicKeyResponse = userService.getPublicKey(userInterface.getAccessToken(), contact.getUid()).execute();
-
-                if (contactResponse.isSuccessful() && publicKeyResponse.isSuccessful()) {
-                    UserDTO userDTO = contactResponse.body().getContent();
-                    String publicKey = publicKeyResponse.body().getContent();
-
-                    boolean changed = false;
-
-                    if (contact.getProfilePicTn() == null) {
-                        if (userDTO.getProfilePicTn() != null) {
-                            contact.setProfilePicTn(userDTO.getProfilePicTn());
-                            changed = true;
-                        }
-                    } else if (!contact.getProfilePicTn().equals(userDTO.getProfilePicTn())) {
-                        contact.setProfilePicTn(userDTO.getProfilePicTn());
-                        changed = true;
+        if (bulkSupported) {
+            while (synced < contacts.size()) {
+                List<Contact> chunk = contacts.subList(synced, Math.min(contacts.size(), synced + BULK_SIZE));
+                try {
+                    if (!syncBulk(chunk, changed, changedPublicKeys)) {
+                        break; // Not supported, fetch the rest one by one
                     }
+                } catch (IOException e) {
+                    success = false;
+                }
+                synced += chunk.size();
+            }
+        }
 
-                    if (!contact.getPublicKey().equals(publicKey)) {
-                        contact.setPublicKey(publicKey);
-                        changed = true;
-                    }
+        if (synced < contacts.size()) {
+            success &= syncParallel(contacts.subList(synced, contacts.size()), changed, changedPublicKeys);
+        }
 
-                    if (changed) {
+        if (!changed.isEmpty()) {
+            try {
+                databaseWriter.submit(() -> {
+                    for (Contact contact : changed) {
                         contactInterface.updateContact(contact);
-                        // Notify the chat list if it is already displayed
+                    }
+                }, () -> {
+                    for (String uid : changedPublicKeys) {
+                        CryptoManager.invalidatePublicKey(uid);
+                    }
+                    // Notify the chat list if it is already displayed
+                    for (Contact contact : changed) {
                         MessageConsumer.notifyChatListChangedFromExternal(chatInterface.getChatForContact(contact.getUid()));
-                        contactsUpdated++;
                     }
-                }
-            } catch (IOException e) {
+                }).get();
+            } catch (ExecutionException e) {
+                log.error("Saving updated contacts failed: " + e.getCause());
+                success = false;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
                 success = false;
             }
         }
 
         if (asyncJobCallback != null) {
-            asyncJobCallback.onResult(new JobResult<>(success, contactsUpdated));
+            asyncJobCallback.onResult(new JobResult<>(success, changed.size()));
+        }
+    }
+
+    /**
+     * Fetch the changes of many contacts in one request
+     *
+     * @param contacts
+     * @param changed           Collects the changed contacts
+     * @param changedPublicKeys Collects the uids of the contacts with a new public key
+     * @return false if the backend has no bulk endpoint
+     * @throws IOException
+     */
+    private boolean syncBulk(List<Contact> contacts, List<Contact> changed, Set<String> changedPublicKeys) throws IOException {
+        List<UserVersionDTO> versions = new ArrayList<>();
+        for (Contact contact : contacts) {
+            versions.add(new UserVersionDTO(contact.getUid(), contact.getEtag(), contact.getPublicKeyEtag()));
+        }
+
+        Response<Container<List<UserUpdateDTO>>> response = userService.getBulk(userInterface.getAccessToken(), versions).execute();
+        if (response.code() == CODE_NOT_FOUND) {
+            bulkSupported = false;
+            return false;
+        }
+        if (!response.isSuccessful()) {
+            throw new IOException("Bulk request failed with " + response.code());
+        }
+
+        for (UserUpdateDTO update : content(response)) {
+            Contact contact = findContact(contacts, update.getUid());
+            if (contact == null) {
+                continue;
+            }
+
+            // Evaluate both, so each stores its new version
+            boolean userChanged = update.getUser() != null && applyUser(contact, update.getUser(), update.getEtag());
+            boolean publicKeyChanged = update.getPublicKey() != null
+                    && applyPublicKey(contact, update.getPublicKey(), update.getPublicKeyEtag(), changedPublicKeys);
+            if (userChanged || publicKeyChanged) {
+                changed.add(contact);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Fetch every contact on its own with at most {@link #parallelism} requests at a time
+     *
+     * @param contacts
+     * @param changed           Collects the changed contacts
+     * @param changedPublicKeys Collects the uids of the contacts with a new public key
+     * @return false if any request failed
+     */
+    private boolean syncParallel(List<Contact> contacts, List<Contact> changed, Set<String> changedPublicKeys) {
+        AtomicInteger threadCount = new AtomicInteger();
+        ExecutorService executor = Executors.newFixedThreadPool(parallelism,
+                runnable -> new Thread(runnable, THREAD_NAME + threadCount.incrementAndGet()));
+
+        List<Future<Boolean>> futures = new ArrayList<>();
+        for (Contact contact : contacts) {
+            futures.add(executor.submit(() -> {
+                // Evaluate both, so each stores its new version
+                boolean userChanged = syncUser(contact);
+                boolean publicKeyChanged = syncPublicKey(contact, changedPublicKeys);
+                return userChanged || publicKeyChanged;
+            }));
+        }
+
+        boolean success = true;
+        for (int i = 0; i < futures.size(); i++) {
+            try {
+                if (futures.get(i).get()) {
+                    changed.add(contacts.get(i));
+                }
+            } catch (ExecutionException e) {
+                success = false;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                success = false;
+                break;
+            }
+        }
+
+        executor.shutdownNow();
+        return success;
+    }
+
+    /**
+     * Fetch the user of a contact if its version changed
+     *
+     * @param contact
+     * @return If the contact was changed
+     * @throws IOException
+     */
+    private boolean syncUser(Contact contact) throws IOException {
+        Response<Container<UserDTO>> response = userService.get(userInterface.getAccessToken(), contact.getUid(), contact.getEtag()).execute();
+        if (response.code() == Responses.CODE_NOT_MODIFIED || !response.isSuccessful()) {
+            return false;
+        }
+
+        return applyUser(contact, content(response), response.headers().get(Headers.ETAG));
+    }
+
+    /**
+     * Fetch the public key of a contact if its version changed
+     *
+     * @param contact
+     * @param changedPublicKeys Collects the uid if the public key changed
+     * @return If the contact was changed
+     * @throws IOException
+     */
+    private boolean syncPublicKey(Contact contact, Set<String> changedPublicKeys) throws IOException {
+        Response<Container<String>> response = userService.getPublicKey(userInterface.getAccessToken(), contact.getUid(),
+                contact.getPublicKeyEtag()).execute();
+        if (response.code() == Responses.CODE_NOT_MODIFIED || !response.isSuccessful()) {
+            return false;
+        }
+
+        return applyPublicKey(contact, content(response), response.headers().get(Headers.ETAG), changedPublicKeys);
+    }
+
+    /**
+     * Get the content of a successful response
+     *
+     * @param response
+     * @return The content, never null
+     * @throws IOException If the body or its content is missing, like a failed request
+     */
+    private static <T> T content(Response<Container<T>> response) throws IOException {
+        if (response.body() == null || response.body().getContent() == null) {
+            throw new IOException("Response " + response.code() + " has no content");
+        }
+        return response.body().getContent();
+    }
+
+    private boolean applyUser(Contact contact, UserDTO userDTO, String etag) {
+        boolean changed = false;
+        if (!TextUtils.equals(contact.getProfilePicHash(), AvatarStore.hash(userDTO.getProfilePicTn()))) {
+            contact.setProfilePicHash(avatarStore.put(userDTO.getProfilePicTn()));
+            changed = true;
+        }
+
+        if (!TextUtils.equals(contact.getEtag(), etag)) {
+            contact.setEtag(etag);
+            changed = true;
+        }
+        return changed;
+    }
+
+    private boolean applyPublicKey(Contact contact, String publicKey, String etag, Set<String> changedPublicKeys) {
+        boolean changed = false;
+        if (!TextUtils.equals(contact.getPublicKey(), publicKey)) {
+            contact.setPublicKey(publicKey);
+            changedPublicKeys.add(contact.getUid()); // Invalidated after the commit
+            changed = true;
+        }
+
+        if (!TextUtils.equals(contact.getPublicKeyEtag(), etag)) {
+            contact.setPublicKeyEtag(etag);
+            changed = true;
+        }
+        return changed;
+    }
+
+    private Contact findContact(List<Contact> contacts, String uid) {
+        for (Contact contact : contacts) {
+            if (contact.getUid().equals(uid)) {
+                return contact;
+            }
         }
+        return null;
     }
 }
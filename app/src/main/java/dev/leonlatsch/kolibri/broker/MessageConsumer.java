@@ -3,7 +3,6 @@ package dev.leonlatsch.kolibri.broker;
 import android.content.Context;
 import android.content.SharedPreferences;
 
-import com.fasterxml.jackson.databind.ObjectMapper;
 import com.rabbitmq.client.AlreadyClosedException;
 import com.rabbitmq.client.Channel;
 import com.rabbitmq.client.Connection;
@@ -17,9 +16,13 @@ import java.io.IOException;
 import java.nio.charset.StandardCharsets;
 import java.security.KeyManagementException;
 import java.security.NoSuchAlgorithmException;
+import java.util.List;
 import java.util.concurrent.TimeoutException;
 
+import dev.leonlatsch.kolibri.broker.pipeline.NotifyStage;
+import dev.leonlatsch.kolibri.broker.pipeline.ReceivePipeline;
 import dev.leonlatsch.kolibri.database.DatabaseMapper;
+import dev.leonlatsch.kolibri.database.DatabaseWriter;
 import dev.leonlatsch.kolibri.database.interfaces.ChatInterface;
 import dev.leonlatsch.kolibri.database.interfaces.ContactInterface;
 import dev.leonlatsch.kolibri.database.interfaces.KeyPairInterface;
@@ -27,16 +30,15 @@ import dev.leonlatsch.kolibri.database.interfaces.UserInterface;
 import dev.leonlatsch.kolibri.database.model.Chat;
 import dev.leonlatsch.kolibri.database.model.Message;
 import dev.leonlatsch.kolibri.ui.chat.ChatActivity;
-import dev.leonlatsch.kolibri.rest.dto.Container;
 import dev.leonlatsch.kolibri.rest.dto.MessageDTO;
 import dev.leonlatsch.kolibri.rest.dto.UserDTO;
+import dev.leonlatsch.kolibri.rest.http.JsonCodec;
 import dev.leonlatsch.kolibri.rest.http.SSLHelper;
 import dev.leonlatsch.kolibri.rest.service.RestServiceFactory;
 import dev.leonlatsch.kolibri.rest.service.UserService;
 import dev.leonlatsch.kolibri.security.CryptoManager;
 import dev.leonlatsch.kolibri.settings.Config;
 import dev.leonlatsch.kolibri.util.Generator;
-import retrofit2.Response;
 
 /**
  * This class controls the receiving of messages.
@@ -52,6 +54,10 @@ public class MessageConsumer {
     private static final String USER_QUEUE_PREFIX = "queue.user.";
     private static final String THREAD_NAME = "BROKER-NET-THREAD";
 
+    private static final int DEFAULT_PREFETCH = 100;
+    private static final int DEFAULT_BATCH_SIZE = 50;
+    private static final int DEFAULT_FLUSH_INTERVAL = 250; // ms
+
     private static MessageConsumer consumer; // Singleton
     private static MessageRecyclerChangeListener messageRecyclerChangeListener;
     private static ChatListChangeListener chatListChangeListener;
@@ -59,12 +65,21 @@ public class MessageConsumer {
     private ConnectionFactory connectionFactory;
     private DeliverCallback callback;
     private Connection connection;
+    private ReceivePipeline pipeline;
+    private NotifyStage notifyStage;
+    private SenderResolver senderResolver;
+    private volatile MessagePublisher publisher;
+    private String publishExchange;
+    private int prefetch;
+    private int batchSize;
+    private int flushInterval;
     private UserInterface userInterface;
     private ContactInterface contactInterface;
     private ChatInterface chatInterface;
     private KeyPairInterface keyPairInterface;
     private UserService userService;
     private DatabaseMapper databaseMapper;
+    private DatabaseWriter databaseWriter;
 
     private MessageConsumer(Context context) {
         initialize(context);
@@ -100,6 +115,19 @@ public class MessageConsumer {
         chatListChangeListener = listener;
     }
 
+    /**
+     * Get the publisher for sending over the broker
+     *
+     * @return The {@link MessagePublisher} or null if sending over the broker is disabled or not connected
+     */
+    public static MessagePublisher getPublisher() {
+        MessageConsumer current = consumer;
+        if (current == null || current.publisher == null || !current.publisher.isOpen()) {
+            return null;
+        }
+        return current.publisher;
+    }
+
     public static boolean isRunning() {
         return isRunning;
     }
@@ -134,7 +162,15 @@ public class MessageConsumer {
         keyPairInterface = KeyPairInterface.getInstance();
         userService = RestServiceFactory.getUserService();
         databaseMapper = DatabaseMapper.getInstance();
+        databaseWriter = DatabaseWriter.getInstance();
         SharedPreferences preferences = Config.getSharedPreferences(context);
+        prefetch = preferences.getInt(Config.KEY_BACKEND_BROKER_PREFETCH, DEFAULT_PREFETCH);
+        batchSize = preferences.getInt(Config.KEY_BACKEND_BROKER_BATCH_SIZE, DEFAULT_BATCH_SIZE);
+        flushInterval = preferences.getInt(Config.KEY_BACKEND_BROKER_FLUSH_INTERVAL, DEFAULT_FLUSH_INTERVAL);
+        publishExchange = preferences.getString(Config.KEY_BACKEND_BROKER_PUBLISH_EXCHANGE, null);
+        if (prefetch > 0 && batchSize > prefetch) {
+            batchSize = prefetch; // A batch can never fill up with fewer unacknowledged deliveries
+        }
 
         // Initialize config
         try {
@@ -151,26 +187,15 @@ public class MessageConsumer {
             log.error("" + e); // Should never happen
         }
 
+        notifyStage = new NotifyStage(this::notifyChatListChangeListener, this::notifyMessageRecyclerChangeListener);
+        senderResolver = new SenderResolver(userService, userInterface,
+                (message, userDTO, publicKey) -> pipeline.write(() -> createChat(message, userDTO, publicKey)));
+
         callback = ((consumerTag, message) -> {
-            MessageDTO messageDTO = new ObjectMapper().readValue(new String(message.getBody(), StandardCharsets.UTF_8), MessageDTO.class);
-            if (messageDTO != null) {
-                switch (messageDTO.getType()) {
-                    case TEXT:
-                        processTextMessage(databaseMapper.toModel(messageDTO));
-                        break;
-                    case IMAGE:
-                        //TODO: Process Image
-                        break;
-                    case AUDIO:
-                        //TODO: Process Audio
-                        break;
-                    case VIDEO:
-                        //TODO Process Video
-                        break;
-                    default:
-                        log.warn("Received message with type: " + messageDTO.getType());
-                        break;
-                }
+            try {
+                pipeline.submit(message.getEnvelope().getDeliveryTag(), message.getBody());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt(); // Not acknowledged, gets redelivered
             }
         });
     }
@@ -183,10 +208,35 @@ public class MessageConsumer {
             try {
                 connection = connectionFactory.newConnection();
                 Channel channel = connection.createChannel();
-                channel.basicConsume(USER_QUEUE_PREFIX + userInterface.getUser().getUid(), true, callback, consumerTag -> {
+                channel.basicQos(prefetch);
+                pipeline = new ReceivePipeline(channel, prefetch > 0 ? prefetch : DEFAULT_PREFETCH, batchSize, flushInterval,
+                        new ReceivePipeline.Processor() {
+                            @Override
+                            public Message decode(byte[] body) {
+                                return decodeMessage(body);
+                            }
+
+                            @Override
+                            public void persist(Message message) {
+                                persistTextMessage(message);
+                            }
+                        });
+                pipeline.start();
+                senderResolver.resolveParked(chatInterface.getMessagesWithoutChat());
+                if (publishExchange != null && !publishExchange.isEmpty()) {
+                    publisher = new MessagePublisher(connection, publishExchange);
+                }
+                channel.basicConsume(USER_QUEUE_PREFIX + userInterface.getUser().getUid(), false, callback, consumerTag -> {
                 });
                 isRunning = true;
             } catch (IOException | TimeoutException e) {
+                if (pipeline != null) {
+                    pipeline.stop();
+                }
+                if (publisher != null) {
+                    publisher.close();
+                    publisher = null;
+                }
                 try {
                     Thread.sleep(1000);
                 } catch (InterruptedException ex) {
@@ -198,54 +248,132 @@ public class MessageConsumer {
     }
 
     /**
-     * Proceed a text message and notify components
+     * Parse and decrypt a received message. Runs on the decode pool of the {@link ReceivePipeline}.
      *
-     * @param message
+     * @param body
+     * @return The decrypted message or null if it can't be processed
      */
-    private void processTextMessage(Message message) {
+    private Message decodeMessage(byte[] body) {
+        MessageDTO messageDTO;
+        try {
+            messageDTO = JsonCodec.readMessage(body);
+        } catch (IOException e) {
+            log.warn("Dropping unreadable message: " + e);
+            return null;
+        }
+
+        if (messageDTO == null) {
+            return null;
+        }
+
+        switch (messageDTO.getType()) {
+            case TEXT:
+                break;
+            case IMAGE:
+                //TODO: Process Image
+                return null;
+            case AUDIO:
+                //TODO: Process Audio
+                return null;
+            case VIDEO:
+                //TODO Process Video
+                return null;
+            default:
+                log.warn("Received message with type: " + messageDTO.getType());
+                return null;
+        }
+
+        Message message = databaseMapper.toModel(messageDTO);
         byte[] decryptedData = CryptoManager.decryptAndDecode(message.getContent(), keyPairInterface.get(userInterface.getUser().getUid()).getPrivateKey());
-        String content = new String(decryptedData, StandardCharsets.UTF_8);
-        message.setContent(content);
-        if (!chatInterface.messageExists(message)) {
-            Chat chat = chatInterface.getChatFromMessage(message);
-            if (chat != null) {
-                message.setCid(chat.getCid());
-            }
+        if (decryptedData == null) {
+            log.warn("Dropping message that could not be decrypted: " + message.getMid());
+            return null;
+        }
+        message.setContent(new String(decryptedData, StandardCharsets.UTF_8));
+        return message;
+    }
 
-            if (chat == null) {
-                try {
-                    Response<Container<UserDTO>> userResponse = userService.get(userInterface.getAccessToken(), message.getFrom()).execute();
-                    Response<Container<String>> publicKeyResponse = userService.getPublicKey(userInterface.getAccessToken(), message.getFrom()).execute();
-
-                    if (userResponse.isSuccessful() && publicKeyResponse.isSuccessful()) {
-                        contactInterface.save(userResponse.body().getContent(), publicKeyResponse.body().getContent());
-                        int unreadMessages = ChatActivity.isActive && message.getFrom().equals(ChatActivity.activeContact) ? 0 : 1;
-                        chat = new Chat(Generator.genUUid(), message.getFrom(), unreadMessages, message.getContent(), message.getTimestamp());
-                        message.setCid(chat.getCid());
-                        chatInterface.saveChat(chat);
-                        notifyChatListChangeListener(chat);
-                    }
-                } catch (IOException e) {
-                    return;
-                }
-            } else {
-                chat.setLastMessage(message.getContent());
-                chat.setLastTimestamp(message.getTimestamp());
-                if (ChatActivity.isActive) {
-                    notifyMessageRecyclerChangeListener(message);
-                } else {
-                    chat.setUnreadMessages(chat.getUnreadMessages() + 1);
-                }
-                chatInterface.updateChat(chat);
-                notifyChatListChangeListener(chat);
+    /**
+     * Persist a decrypted text message and notify components after the commit.
+     * Runs on the {@link DatabaseWriter} inside a transaction.
+     * <p>
+     * Messages from unknown senders are saved without a chat and the sender is resolved in the background,
+     * so a slow lookup never blocks the writer.
+     *
+     * @param message
+     */
+    private void persistTextMessage(Message message) {
+        if (chatInterface.messageExists(message)) {
+            return;
+        }
+
+        Chat chat = chatInterface.getChatFromMessage(message);
+        if (chat == null) {
+            chatInterface.saveMessage(message); // Gets assigned to a chat when the sender is resolved
+            databaseWriter.afterCommit(() -> senderResolver.resolve(message));
+            return;
+        }
+
+        message.setCid(chat.getCid());
+        chat.setLastMessage(message.getContent());
+        chat.setLastTimestamp(message.getTimestamp());
+        boolean active = ChatActivity.isActive;
+        if (!active) {
+            chat.setUnreadMessages(chat.getUnreadMessages() + 1);
+        }
+        chatInterface.updateChat(chat);
+        chatInterface.saveMessage(message);
+        databaseWriter.afterCommit(() -> {
+            if (active) {
+                notifyStage.receive(message);
             }
-            chatInterface.saveMessage(message);
+            notifyStage.chatChanged(chat);
+        });
+    }
+
+    /**
+     * Create contact and chat for a resolved sender and assign all of his parked messages.
+     * Runs on the {@link DatabaseWriter} in order with the deliveries.
+     *
+     * @param message   The message the sender was resolved for
+     * @param userDTO   The sender
+     * @param publicKey The senders public key
+     */
+    private void createChat(Message message, UserDTO userDTO, String publicKey) {
+        Chat chat = chatInterface.getChatFromMessage(message);
+        if (chat == null) {
+            contactInterface.save(userDTO, publicKey);
+            chat = new Chat(Generator.genUUid(), message.getFrom(), 0, message.getContent(), message.getTimestamp());
+            chatInterface.saveChat(chat);
         }
+
+        int assigned = chatInterface.assignMessagesToChat(chat.getCid(), message.getFrom());
+        if (assigned == 0) {
+            return; // Another lookup was faster
+        }
+
+        if (!(ChatActivity.isActive && message.getFrom().equals(ChatActivity.activeContact))) {
+            chat.setUnreadMessages(chat.getUnreadMessages() + assigned);
+        }
+        Message lastMessage = chatInterface.getLastMessage(chat.getCid());
+        chat.setLastMessage(lastMessage.getContent());
+        chat.setLastTimestamp(lastMessage.getTimestamp());
+        chatInterface.updateChat(chat);
+        Chat changedChat = chat;
+        databaseWriter.afterCommit(() -> notifyStage.chatChanged(changedChat));
     }
 
     private void disconnect() {
         new Thread(() -> {
             try {
+                if (pipeline != null) {
+                    pipeline.stop();
+                }
+                if (publisher != null) {
+                    publisher.close();
+                }
+                notifyStage.shutdown();
+                senderResolver.shutdown();
                 connection.close();
             } catch (IOException | AlreadyClosedException e) {
             }
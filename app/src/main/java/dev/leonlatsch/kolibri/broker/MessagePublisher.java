@@ -0,0 +1,175 @@
+package dev.leonlatsch.kolibri.broker;
+
+import com.rabbitmq.client.AMQP;
+import com.rabbitmq.client.AlreadyClosedException;
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.ConfirmListener;
+import com.rabbitmq.client.Connection;
+import com.rabbitmq.client.MessageProperties;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+import dev.leonlatsch.kolibri.rest.dto.MessageDTO;
+import dev.leonlatsch.kolibri.rest.http.JsonCodec;
+
+/**
+ * Publishes outgoing messages over the broker connection of the {@link MessageConsumer}.
+ * <p>
+ * Uses a dedicated channel in confirm mode. A message only counts as sent when the broker confirmed it.
+ * Messages are published as mandatory. Messages that are returned as unroutable, nacked or not confirmed in time
+ * count as not sent and get retried by the outbox. So do the messages published after them, to keep the order.
+ *
+ * @author Leon Latsch
+ * @since 1.0.0
+ */
+public class MessagePublisher {
+
+    private static final Logger log = LoggerFactory.getLogger(MessagePublisher.class);
+
+    private static final long CONFIRM_TIMEOUT = 10000; // ms
+
+    private final Channel channel;
+    private final String exchange;
+
+    private final SortedMap<Long, String> outstanding = new TreeMap<>(); // Publish sequence number -> mid
+    private final Set<String> confirmed = new HashSet<>();
+    private final Set<String> returned = new HashSet<>(); // Unroutable, the broker acks them anyway
+
+    /**
+     * @param connection The connection of the {@link MessageConsumer}
+     * @param exchange   The exchange to publish to. The recipients uid is used as routing key.
+     * @throws IOException If the channel could not be opened
+     */
+    public MessagePublisher(Connection connection, String exchange) throws IOException {
+        this(connection.createChannel(), exchange);
+    }
+
+    MessagePublisher(Channel channel, String exchange) throws IOException {
+        this.channel = channel;
+        this.exchange = exchange;
+        channel.confirmSelect();
+        channel.addReturnListener((replyCode, replyText, returnedExchange, routingKey, properties, body) -> {
+            log.warn("Message " + properties.getMessageId() + " could not be routed to " + routingKey + ": " + replyText);
+            synchronized (outstanding) {
+                returned.add(properties.getMessageId()); // The broker sends the return before the ack
+            }
+        });
+        channel.addConfirmListener(new ConfirmListener() {
+            @Override
+            public void handleAck(long deliveryTag, boolean multiple) {
+                confirm(deliveryTag, multiple, true);
+            }
+
+            @Override
+            public void handleNack(long deliveryTag, boolean multiple) {
+                confirm(deliveryTag, multiple, false);
+            }
+        });
+    }
+
+    /**
+     * Publish encrypted messages and wait for their confirms
+     *
+     * @param messages The encrypted {@link MessageDTO}s
+     * @return The ids of the messages up to the first one that was not confirmed or null if the channel is not usable
+     * @throws InterruptedException
+     */
+    public synchronized List<String> publish(List<MessageDTO> messages) throws InterruptedException {
+        try {
+            for (MessageDTO message : messages) {
+                AMQP.BasicProperties properties = MessageProperties.PERSISTENT_BASIC.builder()
+                        .messageId(message.getMid())
+                        .build();
+                byte[] body = JsonCodec.getObjectMapper().writeValueAsBytes(message);
+
+                synchronized (outstanding) {
+                    outstanding.put(channel.getNextPublishSeqNo(), message.getMid());
+                }
+                channel.basicPublish(exchange, message.getTo(), true, properties, body); // Mandatory, so unroutable messages are returned
+            }
+        } catch (IOException | AlreadyClosedException e) {
+            log.warn("" + e);
+            synchronized (outstanding) {
+                outstanding.clear();
+                confirmed.clear();
+                returned.clear();
+            }
+            return null;
+        }
+
+        synchronized (outstanding) {
+            long deadline = System.currentTimeMillis() + CONFIRM_TIMEOUT;
+            while (!outstanding.isEmpty()) {
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    break; // Not confirmed counts as not sent
+                }
+                outstanding.wait(remaining);
+            }
+
+            List<String> result = new ArrayList<>();
+            for (MessageDTO message : messages) {
+                if (!confirmed.contains(message.getMid())) {
+                    break; // The rest is retried with it, so the recipient never gets a later message first
+                }
+                result.add(message.getMid());
+            }
+            outstanding.clear();
+            confirmed.clear();
+            returned.clear();
+            return result;
+        }
+    }
+
+    public boolean isOpen() {
+        return channel.isOpen();
+    }
+
+    public void close() {
+        try {
+            channel.close();
+        } catch (Exception e) {
+        }
+    }
+
+    private void confirm(long deliveryTag, boolean multiple, boolean ack) {
+        synchronized (outstanding) {
+            Map<Long, String> done = multiple ? outstanding.headMap(deliveryTag + 1) : null;
+            if (done != null) {
+                if (ack) {
+                    for (String mid : done.values()) {
+                        acknowledge(mid);
+                    }
+                }
+                done.clear();
+            } else {
+                String mid = outstanding.remove(deliveryTag);
+                if (ack && mid != null) {
+                    acknowledge(mid);
+                }
+            }
+            outstanding.notifyAll();
+        }
+    }
+
+    /**
+     * Count an acked message as sent unless it was returned. Must be called while holding the lock of outstanding.
+     *
+     * @param mid
+     */
+    private void acknowledge(String mid) {
+        if (!returned.remove(mid)) {
+            confirmed.add(mid);
+        }
+    }
+}
@@ -0,0 +1,187 @@
+package dev.leonlatsch.kolibri.broker;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import dev.leonlatsch.kolibri.database.interfaces.UserInterface;
+import dev.leonlatsch.kolibri.database.model.Message;
+import dev.leonlatsch.kolibri.rest.dto.Container;
+import dev.leonlatsch.kolibri.rest.dto.UserDTO;
+import dev.leonlatsch.kolibri.rest.service.UserService;
+import retrofit2.Response;
+
+/**
+ * Resolves user and public key of unknown senders in the background.
+ * <p>
+ * There is only one lookup in flight per sender. Messages of a sender that is already being resolved
+ * are parked and get assigned when the lookup finishes. Results are cached for a short time.
+ * Failed lookups are retried with backoff. Messages that are still parked on start are resolved again.
+ *
+ * @author Leon Latsch
+ * @since 1.0.0
+ */
+public class SenderResolver {
+
+    private static final Logger log = LoggerFactory.getLogger(SenderResolver.class);
+
+    private static final String THREAD_NAME = "BROKER-RESOLVE-THREAD";
+    private static final int THREADS = 2;
+    private static final long CACHE_TTL = 60 * 1000; // ms
+    private static final long INITIAL_BACKOFF = 2000; // ms
+    private static final int MAX_ATTEMPTS = 8; // About 4 minutes in total
+
+    private final UserService userService;
+    private final UserInterface userInterface;
+    private final ResolvedCallback callback;
+    private final ScheduledExecutorService executor;
+
+    private final Set<String> inFlight = new HashSet<>();
+    private final Map<String, Resolved> cache = new HashMap<>();
+
+    public SenderResolver(UserService userService, UserInterface userInterface, ResolvedCallback callback) {
+        this.userService = userService;
+        this.userInterface = userInterface;
+        this.callback = callback;
+        this.executor = Executors.newScheduledThreadPool(THREADS, runnable -> new Thread(runnable, THREAD_NAME));
+    }
+
+    /**
+     * Resolve the sender of a message. Does nothing if the sender is already being resolved.
+     * The callback is always invoked on the resolver threads.
+     *
+     * @param message A message of the unknown sender
+     */
+    public void resolve(Message message) {
+        String uid = message.getFrom();
+        synchronized (this) {
+            Resolved resolved = cache.get(uid);
+            if (resolved != null && resolved.expires > System.currentTimeMillis()) {
+                executor.execute(() -> callback.resolved(message, resolved.user, resolved.publicKey));
+                return;
+            }
+            cache.remove(uid);
+
+            if (!inFlight.add(uid)) {
+                return; // Parked until the running lookup finished
+            }
+        }
+
+        executor.execute(() -> lookup(message, 0));
+    }
+
+    /**
+     * Resolve the senders of messages that were saved without a chat, eg. because a lookup failed before a restart
+     *
+     * @param messages One message per unknown sender
+     */
+    public void resolveParked(List<Message> messages) {
+        for (Message message : messages) {
+            resolve(message);
+        }
+    }
+
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * Look up a sender. Failed lookups are retried with exponential backoff and stay in flight meanwhile.
+     * After {@link #MAX_ATTEMPTS} the sender is given up until the next message or start.
+     *
+     * @param message
+     * @param attempt The attempts so far
+     */
+    private void lookup(Message message, int attempt) {
+        String uid = message.getFrom();
+        boolean failed = true;
+        try {
+            Response<Container<UserDTO>> userResponse = userService.get(userInterface.getAccessToken(), uid).execute();
+            if (!userResponse.isSuccessful()) {
+                log.warn("Could not resolve sender " + uid + ": user request failed with " + userResponse.code());
+                return;
+            }
+
+            Response<Container<String>> publicKeyResponse = userService.getPublicKey(userInterface.getAccessToken(), uid).execute();
+            if (!publicKeyResponse.isSuccessful()) {
+                log.warn("Could not resolve sender " + uid + ": public key request failed with " + publicKeyResponse.code());
+                return;
+            }
+
+            failed = false;
+            Resolved resolved = new Resolved(userResponse.body().getContent(), publicKeyResponse.body().getContent(),
+                    System.currentTimeMillis() + CACHE_TTL);
+            synchronized (this) {
+                cache.put(uid, resolved);
+            }
+            callback.resolved(message, resolved.user, resolved.publicKey);
+        } catch (IOException e) {
+            log.warn("Could not resolve sender " + uid + ": " + e);
+        } finally {
+            if (!failed || !retry(message, attempt + 1)) {
+                synchronized (this) {
+                    inFlight.remove(uid);
+                }
+            }
+        }
+    }
+
+    /**
+     * Schedule the next lookup of a sender
+     *
+     * @param message
+     * @param attempt The attempts so far
+     * @return false if the sender is given up
+     */
+    private boolean retry(Message message, int attempt) {
+        if (attempt >= MAX_ATTEMPTS) {
+            log.warn("Giving up on sender " + message.getFrom() + " after " + attempt + " attempts");
+            return false;
+        }
+
+        try {
+            executor.schedule(() -> lookup(message, attempt), INITIAL_BACKOFF << (attempt - 1), TimeUnit.MILLISECONDS);
+            return true;
+        } catch (RejectedExecutionException e) {
+            return false; // Shut down, swept again on the next start
+        }
+    }
+
+    /**
+     * Called when a sender was resolved
+     */
+    public interface ResolvedCallback {
+
+        /**
+         * @param message   The message the lookup was started for
+         * @param user      The sender
+         * @param publicKey The senders public key
+         */
+        void resolved(Message message, UserDTO user, String publicKey);
+    }
+
+    /**
+     * A cached lookup result
+     */
+    private static class Resolved {
+        final UserDTO user;
+        final String publicKey;
+        final long expires;
+
+        Resolved(UserDTO user, String publicKey, long expires) {
+            this.user = user;
+            this.publicKey = publicKey;
+            this.expires = expires;
+        }
+    }
+}
@@ -0,0 +1,95 @@
+package dev.leonlatsch.kolibri.broker.pipeline;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import dev.leonlatsch.kolibri.broker.ChatListChangeListener;
+import dev.leonlatsch.kolibri.broker.MessageRecyclerChangeListener;
+import dev.leonlatsch.kolibri.database.model.Chat;
+import dev.leonlatsch.kolibri.database.model.Message;
+
+/**
+ * Last stage of the {@link ReceivePipeline}.
+ * Notifies the ui listeners on its own thread. Changes of the same chat are coalesced,
+ * so a burst of messages only results in one chat list update per chat.
+ *
+ * @author Leon Latsch
+ * @since 1.0.0
+ */
+public class NotifyStage implements ChatListChangeListener, MessageRecyclerChangeListener {
+
+    private static final String THREAD_NAME = "BROKER-NOTIFY-THREAD";
+
+    private final ChatListChangeListener chatDelegate;
+    private final MessageRecyclerChangeListener messageDelegate;
+    private final ExecutorService executor;
+
+    private Map<String, Chat> pendingChats = new LinkedHashMap<>();
+    private List<Message> pendingMessages = new ArrayList<>();
+    private boolean scheduled = false;
+
+    public NotifyStage(ChatListChangeListener chatDelegate, MessageRecyclerChangeListener messageDelegate) {
+        this.chatDelegate = chatDelegate;
+        this.messageDelegate = messageDelegate;
+        this.executor = Executors.newSingleThreadExecutor(runnable -> new Thread(runnable, THREAD_NAME));
+    }
+
+    /**
+     * Queue a chat change. Replaces a pending change of the same chat.
+     *
+     * @param chat
+     */
+    @Override
+    public synchronized void chatChanged(Chat chat) {
+        pendingChats.put(chat.getCid(), chat);
+        schedule();
+    }
+
+    /**
+     * Queue a received message
+     *
+     * @param message
+     */
+    @Override
+    public synchronized void receive(Message message) {
+        pendingMessages.add(message);
+        schedule();
+    }
+
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    private void schedule() {
+        if (!scheduled && !executor.isShutdown()) {
+            scheduled = true;
+            executor.execute(this::drain);
+        }
+    }
+
+    /**
+     * Deliver everything that is pending to the delegates
+     */
+    private void drain() {
+        Map<String, Chat> chats;
+        List<Message> messages;
+        synchronized (this) {
+            chats = pendingChats;
+            messages = pendingMessages;
+            pendingChats = new LinkedHashMap<>();
+            pendingMessages = new ArrayList<>();
+            scheduled = false;
+        }
+
+        for (Message message : messages) {
+            messageDelegate.receive(message);
+        }
+        for (Chat chat : chats.values()) {
+            chatDelegate.chatChanged(chat);
+        }
+    }
+}
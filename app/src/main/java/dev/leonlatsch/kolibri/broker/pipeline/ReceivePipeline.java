@@ -0,0 +1,256 @@
+package dev.leonlatsch.kolibri.broker.pipeline;
+
+import com.rabbitmq.client.AlreadyClosedException;
+import com.rabbitmq.client.Channel;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import dev.leonlatsch.kolibri.database.DatabaseWriter;
+import dev.leonlatsch.kolibri.database.model.Message;
+
+/**
+ * Staged pipeline for received messages: decode -> persist -> notify.
+ * <p>
+ * Deliveries are decoded (parsed and decrypted) in parallel on a pool sized to the core count.
+ * The results are persisted in delivery order by a single writer thread. Every batch is one write on the
+ * {@link DatabaseWriter}, so it is committed together, and it is acknowledged with one multi ack.
+ * Each message of a batch has its own savepoint, so a delivery that can't be persisted is rolled back
+ * and rejected on its own and never blocks the queue.
+ * The queue between the broker and the writer is bounded. If it is full the broker thread blocks,
+ * so no more deliveries are taken from the broker until the writer caught up.
+ *
+ * @author Leon Latsch
+ * @since 1.0.0
+ */
+public class ReceivePipeline {
+
+    private static final Logger log = LoggerFactory.getLogger(ReceivePipeline.class);
+
+    private static final String DECODE_THREAD_NAME = "BROKER-DECODE-THREAD-";
+    private static final String WRITER_THREAD_NAME = "BROKER-WRITER-THREAD";
+
+    private final Channel channel;
+    private final int batchSize;
+    private final long flushInterval;
+    private final Processor processor;
+    private final DatabaseWriter databaseWriter;
+
+    private final BlockingQueue<Item> queue;
+    private final ExecutorService decodePool;
+    private final Thread writer;
+
+    private volatile boolean running = false;
+
+    /**
+     * @param channel       The channel the deliveries are received on
+     * @param capacity      The max amount of deliveries waiting for the writer
+     * @param batchSize     The max amount of deliveries persisted in one transaction
+     * @param flushInterval The max time in ms the writer waits for a batch to fill up
+     * @param processor     Decodes and persists the deliveries
+     */
+    public ReceivePipeline(Channel channel, int capacity, int batchSize, long flushInterval, Processor processor) {
+        this.channel = channel;
+        this.batchSize = Math.max(1, batchSize);
+        this.flushInterval = Math.max(0, flushInterval);
+        this.processor = processor;
+        this.databaseWriter = DatabaseWriter.getInstance();
+
+        AtomicInteger threadCount = new AtomicInteger();
+        queue = new LinkedBlockingQueue<>(Math.max(1, capacity));
+        decodePool = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(),
+                runnable -> new Thread(runnable, DECODE_THREAD_NAME + threadCount.incrementAndGet()));
+        writer = new Thread(this::writeLoop, WRITER_THREAD_NAME);
+    }
+
+    public void start() {
+        running = true;
+        writer.start();
+    }
+
+    /**
+     * Stop all stages. Deliveries that are not acknowledged yet get redelivered by the broker.
+     */
+    public void stop() {
+        running = false;
+        writer.interrupt();
+        decodePool.shutdownNow();
+    }
+
+    /**
+     * Submit a delivery. Blocks if the pipeline is full.
+     *
+     * @param deliveryTag The delivery tag from the envelope
+     * @param body        The raw message body
+     * @throws InterruptedException
+     */
+    public void submit(long deliveryTag, byte[] body) throws InterruptedException {
+        if (!running) {
+            return; // Not acknowledged, gets redelivered
+        }
+        Future<Message> message = decodePool.submit(() -> processor.decode(body));
+        queue.put(new Item(deliveryTag, message, null));
+    }
+
+    /**
+     * Run a task on the writer thread, after everything that was submitted before.
+     * Used for database writes that do not belong to a delivery.
+     *
+     * @param task
+     */
+    public void write(Runnable task) {
+        try {
+            queue.put(new Item(-1, null, task));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void writeLoop() {
+        List<Item> batch = new ArrayList<>();
+        while (running) {
+            try {
+                Item next = queue.take();
+                if (next.task == null) {
+                    batch.add(next);
+                    next = null;
+                    long deadline = System.currentTimeMillis() + flushInterval;
+                    while (batch.size() < batchSize) {
+                        next = queue.poll(Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+                        if (next == null || next.task != null) {
+                            break;
+                        }
+                        batch.add(next);
+                        next = null;
+                    }
+                    writeBatch(batch);
+                    batch.clear();
+                }
+
+                if (next != null) {
+                    runTask(next.task);
+                }
+            } catch (InterruptedException e) {
+                running = false;
+            }
+        }
+    }
+
+    /**
+     * Persist a batch in one write and acknowledge it with one multi ack.
+     * Every message is persisted in its own savepoint inside that write. A message that fails is rolled back and
+     * rejected without requeueing, so it can't block the queue, and the rest of the batch is still acknowledged.
+     * If the write itself fails, nothing is acknowledged and the broker redelivers the batch.
+     *
+     * @param batch
+     * @throws InterruptedException
+     */
+    private void writeBatch(List<Item> batch) throws InterruptedException {
+        List<Message> messages = new ArrayList<>(batch.size());
+        for (Item item : batch) {
+            Message message = null;
+            try {
+                message = item.message.get();
+            } catch (ExecutionException e) {
+                log.warn("Dropping undecodable message: " + e.getCause());
+            }
+            messages.add(message);
+        }
+
+        boolean[] failed = new boolean[batch.size()];
+        try {
+            databaseWriter.submit(() -> {
+                for (int i = 0; i < messages.size(); i++) {
+                    Message message = messages.get(i);
+                    if (message == null) {
+                        continue;
+                    }
+                    try {
+                        databaseWriter.submit(() -> processor.persist(message)); // Nested, runs in its own savepoint
+                    } catch (RuntimeException e) {
+                        log.error("Could not persist message " + message.getMid() + ": " + e);
+                        failed[i] = true;
+                    }
+                }
+            }).get();
+        } catch (ExecutionException e) {
+            log.error("Persisting a batch failed: " + e.getCause());
+            return;
+        }
+
+        long ackTag = -1;
+        try {
+            for (int i = 0; i < batch.size(); i++) {
+                long deliveryTag = batch.get(i).deliveryTag;
+                if (failed[i]) {
+                    log.error("Rejecting delivery " + deliveryTag + " that could not be persisted");
+                    channel.basicNack(deliveryTag, false, false); // Dead-lettered if the queue has a dead letter exchange
+                } else {
+                    ackTag = deliveryTag;
+                }
+            }
+
+            if (ackTag >= 0) {
+                channel.basicAck(ackTag, true);
+            }
+        } catch (IOException | AlreadyClosedException e) {
+            log.warn("" + e); // The broker redelivers unacknowledged messages after recovery
+        }
+    }
+
+    private void runTask(Runnable task) throws InterruptedException {
+        try {
+            databaseWriter.submit(task).get();
+        } catch (ExecutionException e) {
+            log.error("Writer task failed: " + e.getCause());
+        }
+    }
+
+    /**
+     * Decodes and persists deliveries
+     */
+    public interface Processor {
+
+        /**
+         * Parse and decrypt a delivery. Called in parallel on the decode pool.
+         *
+         * @param body The raw message body
+         * @return The decrypted message or null if it should be dropped
+         */
+        Message decode(byte[] body);
+
+        /**
+         * Persist a decoded message. Called on the {@link DatabaseWriter} inside a transaction.
+         *
+         * @param message
+         */
+        void persist(Message message);
+    }
+
+    /**
+     * A delivery or a writer task in the queue
+     */
+    private static class Item {
+        final long deliveryTag;
+        final Future<Message> message;
+        final Runnable task;
+
+        Item(long deliveryTag, Future<Message> message, Runnable task) {
+            this.deliveryTag = deliveryTag;
+            this.message = message;
+            this.task = task;
+        }
+    }
+}
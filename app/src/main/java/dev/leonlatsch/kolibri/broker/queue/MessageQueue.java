@@ -1,78 +1,555 @@
 package dev.leonlatsch.kolibri.broker.queue;
 
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
 import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import dev.leonlatsch.kolibri.broker.MessageConsumer;
+import dev.leonlatsch.kolibri.broker.MessagePublisher;
+import dev.leonlatsch.kolibri.constants.Responses;
 import dev.leonlatsch.kolibri.database.DatabaseMapper;
+import dev.leonlatsch.kolibri.database.DatabaseWriter;
 import dev.leonlatsch.kolibri.database.interfaces.ChatInterface;
+import dev.leonlatsch.kolibri.database.interfaces.ContactInterface;
 import dev.leonlatsch.kolibri.database.interfaces.UserInterface;
+import dev.leonlatsch.kolibri.database.model.Contact;
+import dev.leonlatsch.kolibri.database.model.DeliveryState;
 import dev.leonlatsch.kolibri.database.model.Message;
 import dev.leonlatsch.kolibri.rest.dto.Container;
+import dev.leonlatsch.kolibri.rest.dto.MessageDTO;
+import dev.leonlatsch.kolibri.rest.dto.SendResultDTO;
 import dev.leonlatsch.kolibri.rest.service.ChatService;
 import dev.leonlatsch.kolibri.rest.service.RestServiceFactory;
+import dev.leonlatsch.kolibri.security.CryptoManager;
 import retrofit2.Response;
 
 /**
+ * Outbox for outgoing messages. This is the only component that sends messages.
+ * <p>
+ * Every outgoing message is saved as {@link DeliveryState#PENDING} and enqueued here.
+ * Before a batch is sent its rows are claimed atomically ({@link DeliveryState#IN_FLIGHT}),
+ * so a message is never sent twice in parallel. After the attempt the rows become {@link DeliveryState#SENT},
+ * {@link DeliveryState#FAILED} or pending again with the time of the next attempt.
+ * The mid is sent as idempotency key, so a resend after a lost response is dropped by the backend.
+ * <p>
+ * The pending messages are loaded from the database once on start. After that the queue only holds them in memory.
+ * The outbox is partitioned by recipient. Partitions are sent concurrently on a bounded pool,
+ * but every partition is only worked on by one thread at a time, so the messages of a chat stay in order.
+ * A failing partition is retried with its own exponential backoff and jitter and does not delay the others.
+ * Messages the backend answers as not sent or the broker does not confirm become {@link DeliveryState#FAILED}
+ * after {@link #MAX_ATTEMPTS} attempts.
+ * A batch only counts as sent up to its first message that has to be retried. The rest is retried with it.
+ * Attempts that did not reach the backend are retried without a limit.
+ * <p>
+ * Enqueueing a message schedules its partition after {@link #MAX_BATCH_AGE}, so messages written in a burst
+ * are sent in one batch. If the backend does not know the batch endpoint, every message is sent on its own.
+ * If sending over the broker is enabled, batches are published with the {@link MessagePublisher} instead
+ * and only marked as sent when the broker confirmed them.
+ *
  * @author Leon Latsch
  * @since 1.0.0
  */
 public class MessageQueue {
 
-    private static final String THREAD_NAME = "MESSAGE-QUEUE-THREAD";
+    private static final Logger log = LoggerFactory.getLogger(MessageQueue.class);
+
+    private static final String THREAD_NAME = "MESSAGE-QUEUE-THREAD-";
+    private static final int POOL_SIZE = 4;
+
+    private static final long INITIAL_BACKOFF = 1000; // ms
+    private static final long MAX_BACKOFF = 5 * 60 * 1000; // ms
+
+    private static final int MAX_BATCH_SIZE = 50;
+    private static final long MAX_BATCH_AGE = 100; // ms
 
-    private static boolean running = false;
-    private static MessageQueue messageQueue; // Singleton
+    private static final int CODE_NOT_FOUND = 404;
+
+    private static final int MAX_ATTEMPTS = 10; // For messages the backend answered as not sent or the broker did not confirm
+
+    private static volatile boolean running = false;
+    private static volatile MessageQueue messageQueue; // Singleton
 
     private ChatService chatService;
     private ChatInterface chatInterface;
+    private ContactInterface contactInterface;
     private UserInterface userInterface;
     private DatabaseMapper databaseMapper;
+    private DatabaseWriter databaseWriter;
 
-    private Thread thread;
-    private Runnable runnable = () -> {
-        while (running) {
-            try {
-                Thread.sleep(2000);
-
-                List<Message> messages = chatInterface.getAllUnsentMessages();
+    private final ScheduledExecutorService workers;
+    private final Map<String, Partition> partitions = new HashMap<>(); // Recipient uid -> partition
+    private final Set<String> queuedMids = Collections.synchronizedSet(new HashSet<>());
+    private final Random random = new Random();
 
-                for (Message message : messages) {
-                    Response<Container<String>> response = chatService.send(userInterface.getAccessToken(), databaseMapper.toDto(message)).execute();
-                    if (response.isSuccessful()) {
-                        message.setSent(true);
-                        chatInterface.setMessageSent(message);
-                        MessageConsumer.notifyMessageRecyclerChangedFromExternal(message);
-                    }
-                }
-            } catch (InterruptedException | IOException e) {
-            }
-        }
-    };
+    private volatile boolean batchSupported = true;
 
     private MessageQueue() {
         chatService = RestServiceFactory.getChatService();
         chatInterface = ChatInterface.getInstance();
+        contactInterface = ContactInterface.getInstance();
         userInterface = UserInterface.getInstance();
         databaseMapper = DatabaseMapper.getInstance();
+        databaseWriter = DatabaseWriter.getInstance();
 
-        thread = new Thread(runnable, THREAD_NAME);
+        AtomicInteger threadCount = new AtomicInteger();
+        workers = Executors.newScheduledThreadPool(POOL_SIZE,
+                runnable -> new Thread(runnable, THREAD_NAME + threadCount.incrementAndGet()));
     }
 
-    public static void stop() {
-        running = false;
+    public static synchronized void stop() {
+        if (running) {
+            running = false;
+            messageQueue.workers.shutdownNow();
+            messageQueue = null;
+        }
     }
 
-    public static void start() {
+    public static synchronized void start() {
         if (!running) {
             messageQueue = new MessageQueue();
 
             running = true;
-            messageQueue.getThread().start();
+            MessageQueue queue = messageQueue;
+            queue.workers.execute(() -> {
+                try {
+                    queue.databaseWriter.submit(queue.chatInterface::releaseAllMessages).get(); // Left over from a crash
+                } catch (InterruptedException | ExecutionException e) {
+                    return;
+                }
+                for (Message message : queue.chatInterface.getAllUnsentMessages()) {
+                    queue.add(message);
+                }
+            });
+        }
+    }
+
+    /**
+     * Add a pending message to the outbox and schedule its partition.
+     * If the queue is not running, the message is picked up from the database on the next start.
+     *
+     * @param message A message that is saved as {@link DeliveryState#PENDING}
+     */
+    public static void enqueue(Message message) {
+        MessageQueue queue = messageQueue;
+        if (queue != null) {
+            queue.add(message);
+        }
+    }
+
+    /**
+     * Get the current state of all partitions
+     *
+     * @return A {@link PartitionStats} per recipient or a empty list if the queue is not running
+     */
+    public static List<PartitionStats> getStats() {
+        List<PartitionStats> stats = new ArrayList<>();
+        MessageQueue queue = messageQueue;
+        if (queue == null) {
+            return stats;
+        }
+
+        List<Partition> current;
+        synchronized (queue.partitions) {
+            current = new ArrayList<>(queue.partitions.values());
+        }
+        for (Partition partition : current) {
+            synchronized (partition) {
+                stats.add(new PartitionStats(partition.uid, partition.entries.size(), partition.attempts,
+                        partition.lastLatency, partition.sentCount > 0 ? partition.totalLatency / partition.sentCount : 0));
+            }
+        }
+        return stats;
+    }
+
+    private void add(Message message) {
+        if (!queuedMids.add(message.getMid())) {
+            return;
+        }
+
+        Partition partition;
+        synchronized (partitions) {
+            partition = partitions.get(message.getTo());
+            if (partition == null) {
+                partition = new Partition(message.getTo());
+                partitions.put(message.getTo(), partition);
+            }
+        }
+
+        synchronized (partition) {
+            partition.entries.add(new Entry(message));
+            if (!partition.scheduled) { // Otherwise it is running or waiting for its backoff
+                schedule(partition, Math.max(MAX_BATCH_AGE, message.getNextAttempt() - System.currentTimeMillis()));
+            }
+        }
+    }
+
+    /**
+     * Schedule a partition. Must be called while holding the lock of the partition.
+     *
+     * @param partition
+     * @param delay     The delay in ms
+     */
+    private void schedule(Partition partition, long delay) {
+        try {
+            workers.schedule(() -> drain(partition), delay, TimeUnit.MILLISECONDS);
+            partition.scheduled = true;
+        } catch (RejectedExecutionException e) {
+            partition.scheduled = false; // Stopped, the messages are loaded again on the next start
         }
     }
 
-    private Thread getThread() {
-        return thread;
+    /**
+     * Send the next batch of a partition and schedule the rest
+     *
+     * @param partition
+     */
+    private void drain(Partition partition) {
+        List<Entry> batch = new ArrayList<>();
+        synchronized (partition) {
+            Iterator<Entry> iterator = partition.entries.iterator();
+            while (iterator.hasNext() && batch.size() < MAX_BATCH_SIZE) {
+                batch.add(iterator.next());
+            }
+        }
+
+        Set<String> done;
+        try {
+            done = flush(batch);
+        } catch (InterruptedException e) {
+            return; // Stopped, claimed messages are released on the next start
+        }
+
+        long now = System.currentTimeMillis();
+        long nextAttempt = now;
+        List<String> retryMids = new ArrayList<>();
+        synchronized (partition) {
+            Iterator<Entry> iterator = partition.entries.iterator();
+            while (iterator.hasNext()) {
+                Entry entry = iterator.next();
+                if (done.contains(entry.message.getMid())) {
+                    iterator.remove();
+                    partition.lastLatency = now - entry.enqueued;
+                    partition.totalLatency += partition.lastLatency;
+                    partition.sentCount++;
+                }
+            }
+
+            long delay = 0;
+            if (done.size() < batch.size()) {
+                partition.attempts++;
+                delay = backoff(partition.attempts);
+                nextAttempt = now + delay;
+                for (Entry entry : batch) {
+                    if (!done.contains(entry.message.getMid())) {
+                        entry.message.setNextAttempt(nextAttempt);
+                        retryMids.add(entry.message.getMid());
+                    }
+                }
+            } else {
+                partition.attempts = 0;
+            }
+
+            if (partition.entries.isEmpty()) {
+                partition.scheduled = false;
+            } else {
+                schedule(partition, delay);
+            }
+        }
+
+        long releaseAt = nextAttempt;
+        databaseWriter.submit(() -> chatInterface.releaseMessages(retryMids, releaseAt));
+    }
+
+    /**
+     * Claim a batch, send it and mark the sent messages with one update
+     *
+     * @param batch
+     * @return The ids of the messages that are sent, failed or not pending anymore
+     * @throws InterruptedException
+     */
+    private Set<String> flush(List<Entry> batch) throws InterruptedException {
+        List<String> mids = new ArrayList<>(batch.size());
+        for (Entry entry : batch) {
+            mids.add(entry.message.getMid());
+        }
+        Set<String> claimed = new HashSet<>();
+        Set<String> done = new HashSet<>();
+        try {
+            claimed.addAll(databaseWriter.submit(() -> chatInterface.claimMessages(mids)).get());
+        } catch (ExecutionException e) {
+            log.warn("Claiming messages failed: " + e.getCause());
+            return done; // Nothing claimed, the batch stays queued and is retried with backoff
+        }
+
+        List<String> failedMids = new ArrayList<>();
+        Map<String, Entry> entries = new HashMap<>();
+        List<MessageDTO> dtos = new ArrayList<>(batch.size());
+        for (Entry entry : batch) {
+            if (!claimed.contains(entry.message.getMid())) {
+                queuedMids.remove(entry.message.getMid()); // Already sent or deleted
+                done.add(entry.message.getMid());
+                continue;
+            }
+
+            entry.message.setAttempts(entry.message.getAttempts() + 1); // Counted in the row by the claim
+
+            Contact contact = contactInterface.getContact(entry.message.getTo());
+            if (contact == null) {
+                failedMids.add(entry.message.getMid()); // The chat was deleted
+                continue;
+            }
+
+            String encryptedContent = CryptoManager.encryptAndEncode(entry.message.getContent().getBytes(), contact);
+            if (encryptedContent == null) {
+                log.warn("Could not encrypt message " + entry.message.getMid() + " for " + contact.getUid());
+                failedMids.add(entry.message.getMid()); // Invalid public key, retrying would not help
+                continue;
+            }
+
+            MessageDTO encryptedMessage = databaseMapper.toDto(entry.message);
+            encryptedMessage.setContent(encryptedContent);
+            dtos.add(encryptedMessage);
+            entries.put(entry.message.getMid(), entry);
+        }
+
+        List<String> sentMids = dtos.isEmpty() ? new ArrayList<>() : null;
+        List<String> rejectedMids = new ArrayList<>();
+        MessagePublisher publisher = MessageConsumer.getPublisher();
+        if (sentMids == null && publisher != null) {
+            sentMids = publisher.publish(dtos);
+            if (sentMids != null && sentMids.size() < dtos.size()) {
+                rejectedMids.add(dtos.get(sentMids.size()).getMid()); // Nacked, returned or not confirmed in time
+            }
+        }
+        if (sentMids == null && batchSupported) {
+            sentMids = sendBatch(dtos, rejectedMids);
+        }
+        if (sentMids == null) {
+            sentMids = sendSingle(dtos, failedMids);
+        }
+        for (String mid : rejectedMids) {
+            Entry entry = entries.get(mid);
+            if (entry != null && entry.message.getAttempts() >= MAX_ATTEMPTS) {
+                log.warn("Giving up on message " + mid + " after " + entry.message.getAttempts() + " attempts");
+                failedMids.add(mid);
+            }
+        }
+        sentMids = sentInOrder(dtos, sentMids, failedMids);
+
+        databaseWriter.submit(() -> chatInterface.setMessagesFailed(failedMids));
+        for (String mid : failedMids) {
+            queuedMids.remove(mid);
+            done.add(mid);
+        }
+
+        List<String> committedMids = sentMids;
+        databaseWriter.submit(() -> chatInterface.setMessagesSent(committedMids));
+        for (String mid : sentMids) {
+            Entry entry = entries.remove(mid);
+            if (entry != null) {
+                queuedMids.remove(mid);
+                done.add(mid);
+                entry.message.setSent(true);
+                entry.message.setDeliveryState(DeliveryState.SENT);
+                MessageConsumer.notifyMessageRecyclerChangedFromExternal(entry.message);
+            }
+        }
+
+        return done;
+    }
+
+    /**
+     * Cut the sent messages at the first one that is neither sent nor failed.
+     * The messages behind it stay queued and are sent again with it, so the recipient never gets a later message
+     * of the chat first. A resend is dropped by the backend and by the recipient because of its mid.
+     *
+     * @param dtos       The sent messages in the order of the chat
+     * @param sentMids
+     * @param failedMids
+     * @return The ids of the sent messages up to the first one that has to be retried
+     */
+    private static List<String> sentInOrder(List<MessageDTO> dtos, List<String> sentMids, List<String> failedMids) {
+        Set<String> sent = new HashSet<>(sentMids);
+        List<String> inOrder = new ArrayList<>(sent.size());
+        for (MessageDTO dto : dtos) {
+            if (sent.contains(dto.getMid())) {
+                inOrder.add(dto.getMid());
+            } else if (!failedMids.contains(dto.getMid())) {
+                break;
+            }
+        }
+        return inOrder;
+    }
+
+    /**
+     * Send messages with the batch endpoint
+     *
+     * @param dtos
+     * @param rejectedMids Collects the ids of the messages the backend answered as not sent
+     * @return The ids of the sent messages or null if the batch endpoint is not available
+     */
+    private List<String> sendBatch(List<MessageDTO> dtos, List<String> rejectedMids) {
+        List<String> sentMids = new ArrayList<>();
+        try {
+            Response<Container<List<SendResultDTO>>> response = chatService.sendBatch(userInterface.getAccessToken(), dtos).execute();
+            if (response.code() == CODE_NOT_FOUND) {
+                batchSupported = false;
+                return null;
+            }
+
+            if (response.isSuccessful() && response.body() != null && response.body().getContent() != null) {
+                for (SendResultDTO result : response.body().getContent()) {
+                    if (result.isSent()) {
+                        sentMids.add(result.getMid());
+                    } else {
+                        rejectedMids.add(result.getMid());
+                    }
+                }
+            }
+        } catch (IOException e) {
+            log.warn("Sending a batch of " + dtos.size() + " messages failed: " + e.getMessage()); // Retried with backoff
+        }
+
+        return sentMids;
+    }
+
+    /**
+     * Send messages one by one. Stops at the first failure that can be retried to keep the order.
+     *
+     * @param dtos
+     * @param failedMids Collects the ids of the messages the backend rejected
+     * @return The ids of the sent messages
+     */
+    private List<String> sendSingle(List<MessageDTO> dtos, List<String> failedMids) {
+        List<String> sentMids = new ArrayList<>();
+        for (MessageDTO dto : dtos) {
+            try {
+                Response<Container<String>> response = chatService.send(userInterface.getAccessToken(), dto.getMid(), dto).execute();
+                if (response.code() == Responses.CODE_ERROR) {
+                    failedMids.add(dto.getMid()); // Retrying would not help
+                    continue;
+                }
+                if (!response.isSuccessful()) {
+                    break;
+                }
+                sentMids.add(dto.getMid());
+            } catch (IOException e) {
+                break; // Not reachable, retry the rest later
+            }
+        }
+
+        return sentMids;
+    }
+
+    /**
+     * Exponential backoff with jitter
+     *
+     * @param attempts The failed attempts so far
+     * @return The delay before the next attempt in ms
+     */
+    private long backoff(int attempts) {
+        long max = Math.min(MAX_BACKOFF, INITIAL_BACKOFF << Math.min(attempts, 20));
+        return max / 2 + (long) (random.nextDouble() * (max / 2));
+    }
+
+    /**
+     * Snapshot of a partition for monitoring
+     */
+    public static class PartitionStats {
+        private final String uid;
+        private final int depth;
+        private final int attempts;
+        private final long lastLatency;
+        private final long averageLatency;
+
+        PartitionStats(String uid, int depth, int attempts, long lastLatency, long averageLatency) {
+            this.uid = uid;
+            this.depth = depth;
+            this.attempts = attempts;
+            this.lastLatency = lastLatency;
+            this.averageLatency = averageLatency;
+        }
+
+        /**
+         * @return The uid of the recipient
+         */
+        public String getUid() {
+            return uid;
+        }
+
+        /**
+         * @return The amount of unsent messages
+         */
+        public int getDepth() {
+            return depth;
+        }
+
+        /**
+         * @return The failed attempts since the last successful send
+         */
+        public int getAttempts() {
+            return attempts;
+        }
+
+        /**
+         * @return The ms between enqueueing and sending of the last sent message
+         */
+        public long getLastLatency() {
+            return lastLatency;
+        }
+
+        /**
+         * @return The average ms between enqueueing and sending
+         */
+        public long getAverageLatency() {
+            return averageLatency;
+        }
+    }
+
+    /**
+     * The pending messages of one recipient
+     */
+    private static class Partition {
+        final String uid;
+        final ArrayDeque<Entry> entries = new ArrayDeque<>();
+        boolean scheduled = false;
+        int attempts = 0;
+        long lastLatency = 0;
+        long totalLatency = 0;
+        long sentCount = 0;
+
+        Partition(String uid) {
+            this.uid = uid;
+        }
+    }
+
+    /**
+     * A pending message
+     */
+    private static class Entry {
+        final Message message;
+        final long enqueued;
+
+        Entry(Message message) {
+            this.message = message;
+            this.enqueued = System.currentTimeMillis();
+        }
     }
 }
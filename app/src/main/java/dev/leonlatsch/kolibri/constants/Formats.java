@@ -1,7 +1,5 @@
 package dev.leonlatsch.kolibri.constants;
 
-import java.text.SimpleDateFormat;
-
 /**
  * Contains formats used in the app
  *
@@ -11,9 +9,14 @@ import java.text.SimpleDateFormat;
 public class Formats {
 
     /**
-     * Default format for all timestamps
+     * Default format for all timestamps exchanged with the backend
+     */
+    public static final String DATE_FORMAT = "yyyy-MM-dd HH:mm:ss";
+
+    /**
+     * Format for displaying the time of a message
      */
-    public static final SimpleDateFormat DATE_FORMAT = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
+    public static final String TIME_FORMAT = "HH:mm";
 
     private Formats() {
     }
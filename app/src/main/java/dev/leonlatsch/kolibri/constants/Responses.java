@@ -18,6 +18,7 @@ public class Responses {
 
     public static int CODE_OK = 200;
     public static int CODE_NOCONTENT = 204;
+    public static int CODE_NOT_MODIFIED = 304;
     public static int CODE_ERROR = 400;
     public static int CODE_UNAUTHORIZED = 401;
 
@@ -0,0 +1,260 @@
+package dev.leonlatsch.kolibri.database;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteException;
+
+import com.activeandroid.Cache;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Future;
+
+import dev.leonlatsch.kolibri.database.interfaces.ContactInterface;
+import dev.leonlatsch.kolibri.database.interfaces.UserInterface;
+import dev.leonlatsch.kolibri.security.Hash;
+import dev.leonlatsch.kolibri.util.Base64;
+
+/**
+ * Stores profile picture thumbnails as files named by the hash of their content.
+ * <p>
+ * Rows only hold the hash, so loading a contact or user never loads the image.
+ * Equal images share one file and comparing two images is comparing their hashes.
+ * Files are written before the rows referencing them, so files of rolled back or replaced rows are left behind
+ * until {@link #deleteUnreferenced()} runs.
+ *
+ * @author Leon Latsch
+ * @since 1.0.0
+ */
+public class AvatarStore {
+
+    private static final Logger log = LoggerFactory.getLogger(AvatarStore.class);
+
+    private static final String DIRECTORY = "avatars";
+    private static final String TMP_SUFFIX = ".tmp";
+    private static final String[] LEGACY_TABLES = {"contact", "user"}; // Also the tables referencing the files
+    private static final long GRACE_PERIOD = 60 * 60 * 1000; // 1 hour
+
+    private static AvatarStore avatarStore; // Singleton
+
+    private final File directory;
+
+    private AvatarStore(File directory) {
+        this.directory = directory;
+    }
+
+    /**
+     * Initialize the store in the apps files directory
+     *
+     * @param context
+     */
+    public static synchronized void initialize(Context context) {
+        if (avatarStore == null) {
+            File directory = new File(context.getFilesDir(), DIRECTORY);
+            if (!directory.exists() && !directory.mkdirs()) {
+                log.error("Could not create " + directory);
+            }
+            avatarStore = new AvatarStore(directory);
+        }
+    }
+
+    public static AvatarStore getInstance() {
+        if (avatarStore == null) {
+            throw new IllegalStateException("AvatarStore is not initialized");
+        }
+
+        return avatarStore;
+    }
+
+    /**
+     * Get the hash a thumbnail is stored under without storing it
+     *
+     * @param base64
+     * @return The hash or null if base64 is null
+     */
+    public static String hash(String base64) {
+        return base64 != null ? Hash.createHexHash(base64) : null;
+    }
+
+    /**
+     * Store a thumbnail if no file with its hash exists
+     *
+     * @param base64
+     * @return The hash to save in the row or null if base64 is null
+     */
+    public String put(String base64) {
+        String hash = hash(base64);
+        if (hash == null) {
+            return null;
+        }
+
+        File file = new File(directory, hash);
+        if (!file.exists()) {
+            File tmp = new File(directory, hash + TMP_SUFFIX);
+            try (FileOutputStream out = new FileOutputStream(tmp)) {
+                out.write(Base64.toBytes(base64));
+            } catch (IOException e) {
+                log.error("Could not write avatar: " + e);
+                return null;
+            }
+            if (!tmp.renameTo(file)) { // Readers never see a partial file
+                tmp.delete();
+            }
+        } else {
+            file.setLastModified(System.currentTimeMillis()); // Kept by deleteUnreferenced until the row is committed
+        }
+        return hash;
+    }
+
+    /**
+     * Load the image bytes of a hash
+     *
+     * @param hash
+     * @return The bytes or null if hash is null or the file is missing
+     */
+    public byte[] get(String hash) {
+        if (hash == null) {
+            return null;
+        }
+
+        File file = new File(directory, hash);
+        if (!file.exists()) {
+            return null;
+        }
+
+        byte[] bytes = new byte[(int) file.length()];
+        try (FileInputStream in = new FileInputStream(file)) {
+            int read = 0;
+            while (read < bytes.length) {
+                int count = in.read(bytes, read, bytes.length - read);
+                if (count < 0) {
+                    return null;
+                }
+                read += count;
+            }
+            return bytes;
+        } catch (IOException e) {
+            log.error("Could not read avatar: " + e);
+            return null;
+        }
+    }
+
+    /**
+     * Move thumbnails from the legacy profile_pic_tn columns to files on the {@link DatabaseWriter}.
+     * Fresh installs have no legacy columns and nothing to move. Moved rows are cleared, so this is cheap after the first run.
+     * The cached contacts and user are reloaded if rows were moved.
+     */
+    public void moveLegacyAvatars() {
+        int[] moved = new int[1];
+        DatabaseWriter.getInstance().submit(() -> {
+            for (String table : LEGACY_TABLES) {
+                moved[0] += moveLegacyAvatars(table);
+            }
+        }, () -> {
+            if (moved[0] > 0) {
+                ContactInterface.getInstance().invalidateCache();
+                UserInterface.getInstance().loadUser();
+            }
+        });
+    }
+
+    /**
+     * Delete the files no contact or user references anymore on the {@link DatabaseWriter}.
+     * Files written or reused within the {@link #GRACE_PERIOD} are kept, because their rows may not be committed yet.
+     */
+    public void deleteUnreferenced() {
+        DatabaseWriter.getInstance().submit(() -> {
+            Set<String> referenced = new HashSet<>();
+            for (String table : LEGACY_TABLES) {
+                Cursor cursor = Cache.openDatabase().rawQuery("SELECT DISTINCT profile_pic_hash FROM " + table
+                        + " WHERE profile_pic_hash IS NOT NULL", null);
+                try {
+                    while (cursor.moveToNext()) {
+                        referenced.add(cursor.getString(0));
+                    }
+                } finally {
+                    cursor.close();
+                }
+            }
+
+            File[] files = directory.listFiles();
+            if (files == null) {
+                return;
+            }
+
+            long threshold = System.currentTimeMillis() - GRACE_PERIOD;
+            int deleted = 0;
+            for (File file : files) {
+                if (!referenced.contains(file.getName()) && file.lastModified() < threshold && file.delete()) {
+                    deleted++;
+                }
+            }
+            if (deleted > 0) {
+                log.info("Deleted " + deleted + " unreferenced avatars");
+            }
+        });
+    }
+
+    /**
+     * Delete all files on the {@link DatabaseWriter}, after the writes submitted before. Called on logout.
+     *
+     * @return A {@link Future} that completes when the files are deleted
+     */
+    public Future<Void> clear() {
+        return DatabaseWriter.getInstance().submit(() -> {
+            File[] files = directory.listFiles();
+            if (files != null) {
+                for (File file : files) {
+                    file.delete();
+                }
+            }
+        });
+    }
+
+    /**
+     * @param table
+     * @return The amount of moved rows
+     */
+    private int moveLegacyAvatars(String table) {
+        List<Long> ids = new ArrayList<>();
+        try {
+            // Read the ids first, the cursor would skip rows that get updated while it is open
+            Cursor cursor = Cache.openDatabase().rawQuery("SELECT Id FROM " + table + " WHERE profile_pic_tn IS NOT NULL", null);
+            try {
+                while (cursor.moveToNext()) {
+                    ids.add(cursor.getLong(0));
+                }
+            } finally {
+                cursor.close();
+            }
+        } catch (SQLiteException e) {
+            return 0; // No legacy column
+        }
+
+        int moved = 0;
+        for (Long id : ids) {
+            Cursor cursor = Cache.openDatabase().rawQuery("SELECT profile_pic_tn FROM " + table + " WHERE Id = ?",
+                    new String[]{String.valueOf(id)});
+            try {
+                String hash = cursor.moveToFirst() ? put(cursor.getString(0)) : null;
+                if (hash != null) {
+                    Cache.openDatabase().execSQL("UPDATE " + table + " SET profile_pic_hash = ?, profile_pic_tn = NULL WHERE Id = ?",
+                            new Object[]{hash, id});
+                    moved++;
+                }
+            } finally {
+                cursor.close();
+            }
+        }
+        return moved;
+    }
+}
@@ -5,6 +5,7 @@ import dev.leonlatsch.kolibri.database.model.Message;
 import dev.leonlatsch.kolibri.database.model.User;
 import dev.leonlatsch.kolibri.rest.dto.MessageDTO;
 import dev.leonlatsch.kolibri.rest.dto.UserDTO;
+import dev.leonlatsch.kolibri.util.TimeUtil;
 
 /**
  * Class for mapping dto to model and the other way
@@ -35,7 +36,7 @@ public class DatabaseMapper {
         user.setUid(dto.getUid());
         user.setEmail(dto.getEmail());
         user.setUsername(dto.getUsername());
-        user.setProfilePicTn(dto.getProfilePicTn());
+        user.setProfilePicHash(AvatarStore.getInstance().put(dto.getProfilePicTn()));
         return user;
     }
 
@@ -63,7 +64,7 @@ public class DatabaseMapper {
         message.setFrom(dto.getFrom());
         message.setTo(dto.getTo());
         message.setType(dto.getType());
-        message.setTimestamp(dto.getTimestamp());
+        message.setTimestamp(TimeUtil.parse(dto.getTimestamp()));
         message.setContent(dto.getContent());
         return message;
     }
@@ -78,7 +79,7 @@ public class DatabaseMapper {
         dto.setFrom(message.getFrom());
         dto.setTo(message.getTo());
         dto.setType(message.getType());
-        dto.setTimestamp(message.getTimestamp());
+        dto.setTimestamp(TimeUtil.format(message.getTimestamp()));
         dto.setContent(message.getContent());
         return dto;
     }
@@ -95,7 +96,7 @@ public class DatabaseMapper {
         Contact contact = new Contact();
         contact.setUid(user.getUid());
         contact.setUsername(user.getUsername());
-        contact.setProfilePicTn(user.getProfilePicTn());
+        contact.setProfilePicHash(user.getProfilePicHash());
         return contact;
     }
 
@@ -107,7 +108,7 @@ public class DatabaseMapper {
         User user = new User();
         user.setUid(contact.getUid());
         user.setUsername(contact.getUsername());
-        user.setProfilePicTn(contact.getProfilePicTn());
+        user.setProfilePicHash(contact.getProfilePicHash());
         return user;
     }
 }
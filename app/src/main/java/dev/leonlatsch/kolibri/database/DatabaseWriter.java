@@ -0,0 +1,366 @@
+package dev.leonlatsch.kolibri.database;
+
+import android.database.sqlite.SQLiteDatabase;
+
+import com.activeandroid.ActiveAndroid;
+import com.activeandroid.Cache;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Single writer for the database.
+ * <p>
+ * Writes are submitted from any thread and executed in order on one thread.
+ * Writes that are submitted while a transaction is running are committed together in the next transaction,
+ * so a burst of writes costs one commit instead of one per row.
+ * Every write runs in its own savepoint, so a failing write is rolled back on its own and never retried.
+ * Side effects of a write are registered with {@link #afterCommit(Runnable)} and only run once it is committed.
+ * Components that keep rows in memory register with {@link #addRollbackListener(Runnable)} to forget them
+ * when a write was rolled back.
+ *
+ * @author Leon Latsch
+ * @since 1.0.0
+ */
+public class DatabaseWriter {
+
+    private static final Logger log = LoggerFactory.getLogger(DatabaseWriter.class);
+
+    private static final String THREAD_NAME = "DATABASE-WRITER-THREAD";
+    private static final int MAX_BATCH_SIZE = 64;
+
+    private static final String SAVEPOINT = "SAVEPOINT write";
+    private static final String RELEASE_SAVEPOINT = "RELEASE write";
+    // SQLiteDatabase.executeSpecial takes every statement starting with ROLLBACK as the end of the whole transaction.
+    // The leading ; keeps it from matching, so only the savepoint is rolled back.
+    private static final String ROLLBACK_TO_SAVEPOINT = ";ROLLBACK TO write";
+
+    private static DatabaseWriter databaseWriter; // Singleton
+
+    private final BlockingQueue<Task<?>> queue = new LinkedBlockingQueue<>();
+    private final List<Runnable> rollbackListeners = new CopyOnWriteArrayList<>();
+    private final Thread thread;
+
+    /**
+     * The write that is running, only accessed on the writer thread
+     */
+    private Task<?> current;
+
+    private final AtomicLong commits = new AtomicLong();
+    private final AtomicLong totalCommitLatency = new AtomicLong();
+    private volatile long lastCommitLatency = 0;
+
+    private DatabaseWriter() {
+        thread = new Thread(this::writeLoop, THREAD_NAME);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public static synchronized DatabaseWriter getInstance() {
+        if (databaseWriter == null) {
+            databaseWriter = new DatabaseWriter();
+        }
+
+        return databaseWriter;
+    }
+
+    /**
+     * Submit a write
+     *
+     * @param callable
+     * @param <T>
+     * @return A {@link Future} that completes when the write is committed
+     */
+    public <T> Future<T> submit(Callable<T> callable) {
+        return enqueue(new Task<>(callable, null));
+    }
+
+    /**
+     * Submit a write
+     *
+     * @param runnable
+     * @return A {@link Future} that completes when the write is committed
+     */
+    public Future<Void> submit(Runnable runnable) {
+        return submit(runnable, null);
+    }
+
+    /**
+     * Submit a write with a callback
+     *
+     * @param runnable
+     * @param onCommitted Called on the writer thread after the write is committed, not if it rolls back
+     * @return A {@link Future} that completes when the write is committed
+     */
+    public Future<Void> submit(Runnable runnable, Runnable onCommitted) {
+        return enqueue(new Task<>(() -> {
+            runnable.run();
+            return null;
+        }, onCommitted));
+    }
+
+    /**
+     * @return The amount of writes waiting for the writer
+     */
+    public int getQueueDepth() {
+        return queue.size();
+    }
+
+    /**
+     * @return The ms the last transaction took
+     */
+    public long getLastCommitLatency() {
+        return lastCommitLatency;
+    }
+
+    /**
+     * @return The average ms per transaction
+     */
+    public long getAverageCommitLatency() {
+        long count = commits.get();
+        return count > 0 ? totalCommitLatency.get() / count : 0;
+    }
+
+    public long getCommits() {
+        return commits.get();
+    }
+
+    /**
+     * Run a side effect of the current write after it is committed, eg. notifying the UI.
+     * It is dropped if the write rolls back. Outside of a write it runs immediately.
+     *
+     * @param runnable
+     */
+    public void afterCommit(Runnable runnable) {
+        Task<?> task = Thread.currentThread() == thread ? current : null;
+        if (task == null) {
+            runnable.run();
+            return;
+        }
+
+        task.addCallback(runnable);
+    }
+
+    /**
+     * Add a listener that forgets in-memory state which may describe rolled back rows, eg. a cache.
+     * It is called on the writer thread after a transaction in which a write was rolled back.
+     *
+     * @param listener
+     */
+    public void addRollbackListener(Runnable listener) {
+        rollbackListeners.add(listener);
+    }
+
+    private <T> Future<T> enqueue(Task<T> task) {
+        Task<?> outer = Thread.currentThread() == thread ? current : null;
+        if (outer != null) { // Nested write, runs inside the current transaction
+            SQLiteDatabase db = Cache.openDatabase();
+            int callbacks = outer.getCallbackCount();
+            db.execSQL(SAVEPOINT);
+            try {
+                task.execute();
+            } catch (Exception e) {
+                rollbackToSavepoint(db);
+                outer.dropCallbacks(callbacks);
+                task.fail(e);
+                if (e instanceof RuntimeException) {
+                    throw (RuntimeException) e; // Fail the outer write too
+                }
+                return task;
+            }
+            db.execSQL(RELEASE_SAVEPOINT);
+
+            // The result is visible to the outer write right away, but callbacks wait for the commit
+            task.setResult();
+            if (task.onCommitted != null) {
+                outer.addCallback(task.onCommitted);
+            }
+            return task;
+        }
+
+        queue.add(task);
+        return task;
+    }
+
+    private void writeLoop() {
+        List<Task<?>> batch = new ArrayList<>();
+        while (true) {
+            try {
+                batch.add(queue.take());
+                queue.drainTo(batch, MAX_BATCH_SIZE - 1);
+                runInTransaction(batch);
+                batch.clear();
+            } catch (InterruptedException e) {
+                log.warn("" + e); // Should never happen
+            }
+        }
+    }
+
+    /**
+     * Run tasks in one transaction. Every task runs in its own savepoint, so a failing task only rolls back
+     * its own writes and the others still commit. Tasks are never run twice.
+     *
+     * @param tasks
+     */
+    private void runInTransaction(List<Task<?>> tasks) {
+        List<Task<?>> executed = new ArrayList<>(tasks.size());
+        RuntimeException failure = null;
+        long start = System.currentTimeMillis();
+        SQLiteDatabase db = Cache.openDatabase();
+        ActiveAndroid.beginTransaction();
+        try {
+            for (Task<?> task : tasks) {
+                if (runInSavepoint(db, task)) {
+                    executed.add(task);
+                }
+            }
+            ActiveAndroid.setTransactionSuccessful();
+        } catch (RuntimeException e) {
+            failure = e; // The transaction itself is broken
+        } finally {
+            current = null;
+            try {
+                ActiveAndroid.endTransaction();
+            } catch (RuntimeException e) {
+                if (failure == null) {
+                    failure = e; // The commit failed
+                }
+            }
+        }
+
+        lastCommitLatency = System.currentTimeMillis() - start;
+        totalCommitLatency.addAndGet(lastCommitLatency);
+        commits.incrementAndGet();
+
+        if (failure != null || executed.size() < tasks.size()) {
+            onRolledBack();
+        }
+
+        if (failure != null) {
+            log.error("Transaction failed: " + failure);
+            for (Task<?> task : tasks) {
+                task.fail(failure); // No effect on tasks that already failed
+            }
+            return;
+        }
+
+        for (Task<?> task : executed) {
+            task.complete();
+        }
+    }
+
+    /**
+     * @param db
+     * @param task
+     * @return false if the task failed and its writes were rolled back
+     */
+    private boolean runInSavepoint(SQLiteDatabase db, Task<?> task) {
+        db.execSQL(SAVEPOINT);
+        current = task;
+        try {
+            task.execute();
+        } catch (Exception e) {
+            current = null;
+            rollbackToSavepoint(db);
+            log.error("Write failed: " + e);
+            task.fail(e);
+            return false;
+        }
+        current = null;
+        db.execSQL(RELEASE_SAVEPOINT);
+        return true;
+    }
+
+    private void rollbackToSavepoint(SQLiteDatabase db) {
+        db.execSQL(ROLLBACK_TO_SAVEPOINT);
+        db.execSQL(RELEASE_SAVEPOINT); // Rolling back keeps the savepoint open
+    }
+
+    /**
+     * Let the rollback listeners forget in-memory state that may describe rolled back rows
+     */
+    private void onRolledBack() {
+        for (Runnable listener : rollbackListeners) {
+            try {
+                listener.run();
+            } catch (RuntimeException e) {
+                log.error("Rollback listener failed: " + e);
+            }
+        }
+    }
+
+    /**
+     * A write that is completed after its transaction
+     *
+     * @param <T>
+     */
+    private static class Task<T> extends FutureTask<T> {
+        private final Callable<T> callable;
+        private final Runnable onCommitted;
+        private final List<Runnable> callbacks = new ArrayList<>();
+        private T result;
+
+        Task(Callable<T> callable, Runnable onCommitted) {
+            super(callable);
+            this.callable = callable;
+            this.onCommitted = onCommitted;
+        }
+
+        void execute() throws Exception {
+            result = callable.call();
+        }
+
+        void setResult() {
+            set(result);
+        }
+
+        void addCallback(Runnable callback) {
+            callbacks.add(callback);
+        }
+
+        int getCallbackCount() {
+            return callbacks.size();
+        }
+
+        /**
+         * Drop the callbacks added by a nested write that rolled back
+         *
+         * @param count The amount of callbacks to keep
+         */
+        void dropCallbacks(int count) {
+            callbacks.subList(count, callbacks.size()).clear();
+        }
+
+        void complete() {
+            set(result);
+            for (Runnable callback : callbacks) {
+                run(callback);
+            }
+            if (onCommitted != null) {
+                run(onCommitted);
+            }
+        }
+
+        void fail(Exception e) {
+            setException(e);
+        }
+
+        private void run(Runnable callback) {
+            try {
+                callback.run();
+            } catch (RuntimeException e) {
+                log.error("Commit callback failed: " + e);
+            }
+        }
+    }
+}
@@ -0,0 +1,229 @@
+package dev.leonlatsch.kolibri.database;
+
+import android.database.Cursor;
+
+import com.activeandroid.Cache;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * In memory filter in front of the message id lookups.
+ * <p>
+ * Recently saved message ids are held in a bounded LRU set, so redeliveries are detected without a query.
+ * Optionally a Bloom filter over all message ids in the database is built in the background.
+ * If the Bloom filter says a id is absent, it is absent for sure. Only if it says "maybe" the database has to be asked.
+ *
+ * @author Leon Latsch
+ * @since 1.0.0
+ */
+public class MessageIdFilter {
+
+    private static final String THREAD_NAME = "MESSAGE-ID-FILTER-THREAD";
+    private static final String QUERY_ALL_MIDS = "SELECT mid FROM message";
+
+    private static final int RECENT_SIZE = 1024;
+    private static final int MIN_CAPACITY = 16384;
+    private static final int BITS_PER_ENTRY = 10; // ~1% false positives with 7 hashes
+    private static final int HASHES = 7;
+
+    /**
+     * Result of a check
+     */
+    public enum Result {
+        PRESENT,
+        ABSENT,
+        MAYBE
+    }
+
+    private final boolean bloomEnabled;
+
+    private final Map<String, Boolean> recent = new LinkedHashMap<String, Boolean>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+            return size() > RECENT_SIZE;
+        }
+    };
+
+    private BitSet bloom;
+    private int bloomSize;
+    private int capacity;
+    private int entries;
+    private int generation = 0;
+    private List<String> addedWhileBuilding; // Not null while a build is running
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    /**
+     * @param bloomEnabled If a Bloom filter over all message ids should be built
+     */
+    public MessageIdFilter(boolean bloomEnabled) {
+        this.bloomEnabled = bloomEnabled;
+    }
+
+    /**
+     * Check if a message id is known
+     *
+     * @param mid
+     * @return {@link Result#MAYBE} if the database has to be queried
+     */
+    public synchronized Result check(String mid) {
+        if (recent.get(mid) != null) {
+            hits.incrementAndGet();
+            return Result.PRESENT;
+        }
+
+        if (bloom != null && !bloomContains(mid)) {
+            hits.incrementAndGet();
+            return Result.ABSENT;
+        }
+
+        misses.incrementAndGet();
+        return Result.MAYBE;
+    }
+
+    /**
+     * Add a message id that is present in the database
+     *
+     * @param mid
+     */
+    public synchronized void add(String mid) {
+        recent.put(mid, Boolean.TRUE);
+
+        if (addedWhileBuilding != null) {
+            addedWhileBuilding.add(mid);
+        }
+
+        if (bloom != null) {
+            bloomAdd(bloom, bloomSize, mid);
+            if (++entries > capacity) {
+                bloom = null; // Too many false positives, rebuild with a bigger size
+                build();
+            }
+        }
+    }
+
+    /**
+     * Forget the recent ids. Called when messages get deleted.
+     * The Bloom filter stays valid, because deleted ids only cause a database query.
+     */
+    public synchronized void clearRecent() {
+        recent.clear();
+    }
+
+    /**
+     * Forget everything. Called when all messages get deleted.
+     */
+    public synchronized void reset() {
+        recent.clear();
+        generation++;
+        addedWhileBuilding = null;
+        if (bloomEnabled) {
+            capacity = MIN_CAPACITY;
+            bloomSize = capacity * BITS_PER_ENTRY;
+            bloom = new BitSet(bloomSize);
+            entries = 0;
+        }
+    }
+
+    /**
+     * Build the Bloom filter from the database in the background
+     */
+    public synchronized void build() {
+        if (!bloomEnabled || addedWhileBuilding != null) {
+            return;
+        }
+
+        addedWhileBuilding = new ArrayList<>();
+        int buildGeneration = generation;
+        new Thread(() -> buildBloom(buildGeneration), THREAD_NAME).start();
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    private void buildBloom(int buildGeneration) {
+        BitSet newBloom;
+        int newCapacity;
+        int newSize;
+        int count;
+
+        Cursor cursor = Cache.openDatabase().rawQuery(QUERY_ALL_MIDS, null);
+        try {
+            count = cursor.getCount();
+            newCapacity = Math.max(MIN_CAPACITY, count * 2);
+            newSize = newCapacity * BITS_PER_ENTRY;
+            newBloom = new BitSet(newSize);
+            while (cursor.moveToNext()) {
+                String mid = cursor.getString(0);
+                if (mid != null) {
+                    bloomAdd(newBloom, newSize, mid);
+                }
+            }
+        } finally {
+            cursor.close();
+        }
+
+        synchronized (this) {
+            if (buildGeneration != generation) {
+                return; // Reset while building
+            }
+
+            for (String mid : addedWhileBuilding) {
+                bloomAdd(newBloom, newSize, mid);
+            }
+            count += addedWhileBuilding.size();
+            addedWhileBuilding = null;
+
+            bloom = newBloom;
+            bloomSize = newSize;
+            capacity = newCapacity;
+            entries = count;
+        }
+    }
+
+    private boolean bloomContains(String mid) {
+        int hash1 = mid.hashCode();
+        int hash2 = mix(hash1);
+        for (int i = 0; i < HASHES; i++) {
+            if (!bloom.get(index(hash1, hash2, i, bloomSize))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static void bloomAdd(BitSet bits, int size, String mid) {
+        int hash1 = mid.hashCode();
+        int hash2 = mix(hash1);
+        for (int i = 0; i < HASHES; i++) {
+            bits.set(index(hash1, hash2, i, size));
+        }
+    }
+
+    private static int index(int hash1, int hash2, int i, int size) {
+        return ((hash1 + i * hash2) & Integer.MAX_VALUE) % size;
+    }
+
+    /**
+     * Murmur3 finalizer to derive a second hash
+     */
+    private static int mix(int hash) {
+        hash ^= hash >>> 16;
+        hash *= 0x85ebca6b;
+        hash ^= hash >>> 13;
+        hash *= 0xc2b2ae35;
+        hash ^= hash >>> 16;
+        return hash | 1; // Never 0, so the hashes differ
+    }
+}
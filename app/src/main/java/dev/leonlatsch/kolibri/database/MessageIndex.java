@@ -0,0 +1,222 @@
+package dev.leonlatsch.kolibri.database;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteException;
+
+import com.activeandroid.Cache;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Full text index over the message contents, backed by a SQLite FTS4 table.
+ * <p>
+ * The index row of a message uses the message Id as docid. Because Ids only grow, the index is brought up to date
+ * by indexing every message above the highest indexed Id. This runs in the background in small chunks on the
+ * {@link DatabaseWriter}, so saving a message only schedules the catch up and never waits for it.
+ *
+ * @author Leon Latsch
+ * @since 1.0.0
+ */
+public class MessageIndex {
+
+    private static final Logger log = LoggerFactory.getLogger(MessageIndex.class);
+
+    private static final String THREAD_NAME = "MESSAGE-INDEX-THREAD";
+    private static final int CHUNK_SIZE = 500; // Message Ids per transaction
+
+    static final String CREATE_TABLE = "CREATE VIRTUAL TABLE IF NOT EXISTS message_fts USING fts4(body)";
+    private static final String QUERY_MAX_INDEXED = "SELECT MAX(docid) FROM message_fts";
+    private static final String QUERY_MAX_MESSAGE = "SELECT MAX(Id) FROM message";
+    static final String INDEX_CHUNK = "INSERT INTO message_fts(docid, body) SELECT Id, content FROM message"
+            + " WHERE Id > ? AND Id <= ? AND content IS NOT NULL";
+    private static final String DELETE_CHAT = "DELETE FROM message_fts WHERE docid IN (SELECT Id FROM message WHERE cid = ?)";
+    private static final String DELETE_ALL = "DELETE FROM message_fts";
+    // offsets() lists four integers per match, so the amount of spaces in it grows with the amount of matches
+    static final String SEARCH = "SELECT message.mid, message.cid, message.timestamp_ms, hit.snippet"
+            + " FROM (SELECT docid, offsets(message_fts) AS offsets, snippet(message_fts, '[', ']', '...', -1, 12) AS snippet"
+            + " FROM message_fts WHERE message_fts MATCH ?) AS hit"
+            + " JOIN message ON message.Id = hit.docid"
+            + " ORDER BY length(hit.offsets) - length(replace(hit.offsets, ' ', '')) DESC, message.timestamp_ms DESC"
+            + " LIMIT ? OFFSET ?";
+
+    private final DatabaseWriter databaseWriter;
+    private final ExecutorService executor;
+
+    private boolean scheduled = false;
+    private long indexedId = -1; // Highest indexed message Id, only accessed on the index thread
+
+    public MessageIndex() {
+        databaseWriter = DatabaseWriter.getInstance();
+        executor = Executors.newSingleThreadExecutor(runnable -> new Thread(runnable, THREAD_NAME));
+    }
+
+    /**
+     * Schedule indexing of all new messages. Coalesces while a catch up is pending.
+     */
+    public synchronized void schedule() {
+        if (!scheduled) {
+            scheduled = true;
+            executor.execute(this::catchUp);
+        }
+    }
+
+    /**
+     * Remove the messages of a chat from the index. Must be called before the messages get deleted.
+     * Runs on the {@link DatabaseWriter}, inside the current write if called from one, so it never races the catch up.
+     *
+     * @param cid
+     */
+    public void deleteChat(String cid) {
+        databaseWriter.submit(() -> {
+            try {
+                Cache.openDatabase().execSQL(DELETE_CHAT, new Object[]{cid});
+            } catch (SQLiteException e) {
+                log.warn("" + e); // Table not created yet
+            }
+        });
+    }
+
+    /**
+     * Remove all messages from the index. Runs on the {@link DatabaseWriter} like {@link #deleteChat(String)}.
+     */
+    public void deleteAll() {
+        databaseWriter.submit(() -> {
+            try {
+                Cache.openDatabase().execSQL(DELETE_ALL);
+            } catch (SQLiteException e) {
+                log.warn("" + e); // Table not created yet
+            }
+        });
+    }
+
+    /**
+     * Search the message contents. Every word of the query is matched as a prefix.
+     * Hits with more matches are ranked first, then newer hits.
+     *
+     * @param query  The text entered by the user
+     * @param limit  The max amount of hits
+     * @param offset The amount of hits to skip
+     * @return The hits of the page
+     */
+    public List<Hit> search(String query, int limit, int offset) {
+        List<Hit> hits = new ArrayList<>();
+        String match = toMatchExpression(query);
+        if (match.isEmpty()) {
+            return hits;
+        }
+
+        try {
+            Cursor cursor = Cache.openDatabase().rawQuery(SEARCH,
+                    new String[]{match, String.valueOf(limit), String.valueOf(offset)});
+            try {
+                while (cursor.moveToNext()) {
+                    hits.add(new Hit(cursor.getString(0), cursor.getString(1), cursor.getLong(2), cursor.getString(3)));
+                }
+            } finally {
+                cursor.close();
+            }
+        } catch (SQLiteException e) {
+            log.warn("Search failed: " + e);
+        }
+        return hits;
+    }
+
+    /**
+     * Index everything above the highest indexed Id, one chunk per transaction
+     */
+    private void catchUp() {
+        synchronized (this) {
+            scheduled = false;
+        }
+
+        try {
+            if (indexedId < 0) {
+                databaseWriter.submit(() -> Cache.openDatabase().execSQL(CREATE_TABLE)).get();
+                indexedId = queryLong(QUERY_MAX_INDEXED);
+            }
+
+            // Read on the writer, so messages saved before this run are committed
+            long maxId = databaseWriter.submit(() -> queryLong(QUERY_MAX_MESSAGE)).get();
+            while (indexedId < maxId) {
+                long from = indexedId;
+                long to = Math.min(maxId, from + CHUNK_SIZE);
+                databaseWriter.submit(() -> Cache.openDatabase().execSQL(INDEX_CHUNK, new Object[]{from, to})).get();
+                indexedId = to;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            log.error("Indexing messages failed: " + e.getCause());
+            indexedId = -1; // Read the state again on the next run
+        }
+    }
+
+    private long queryLong(String sql) {
+        Cursor cursor = Cache.openDatabase().rawQuery(sql, null);
+        try {
+            return cursor.moveToFirst() && !cursor.isNull(0) ? cursor.getLong(0) : 0;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Quote every word, so the input is never parsed as FTS syntax
+     *
+     * @param query
+     * @return The match expression or an empty string
+     */
+    static String toMatchExpression(String query) {
+        StringBuilder match = new StringBuilder();
+        for (String word : query.trim().split("\\s+")) {
+            String cleaned = word.replace("\"", "").replace("*", "");
+            if (!cleaned.isEmpty()) {
+                match.append(match.length() == 0 ? "" : " ").append('"').append(cleaned).append("*\"");
+            }
+        }
+        return match.toString();
+    }
+
+    /**
+     * A message that matched a search
+     */
+    public static class Hit {
+        private final String mid;
+        private final String cid;
+        private final long timestamp;
+        private final String snippet;
+
+        Hit(String mid, String cid, long timestamp, String snippet) {
+            this.mid = mid;
+            this.cid = cid;
+            this.timestamp = timestamp;
+            this.snippet = snippet;
+        }
+
+        public String getMid() {
+            return mid;
+        }
+
+        public String getCid() {
+            return cid;
+        }
+
+        public long getTimestamp() {
+            return timestamp;
+        }
+
+        /**
+         * @return A part of the content with the matches in square brackets
+         */
+        public String getSnippet() {
+            return snippet;
+        }
+    }
+}
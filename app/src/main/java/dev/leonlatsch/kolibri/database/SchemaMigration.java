@@ -0,0 +1,194 @@
+package dev.leonlatsch.kolibri.database;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+
+import com.activeandroid.ActiveAndroid;
+import com.activeandroid.Cache;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Future;
+
+/**
+ * Brings databases created by older versions up to the schema of the models.
+ * <p>
+ * ActiveAndroid creates fresh databases from the models and then runs every asset migration on them too,
+ * so a plain ALTER TABLE script crashes a fresh install. Every step here checks the current schema first
+ * and only changes what is missing, so it is safe on fresh and on upgraded databases and cheap on every boot.
+ * Must be called after {@link ActiveAndroid#initialize}. Nothing may read the database before the migration is done.
+ *
+ * @author Leon Latsch
+ * @since 1.0.0
+ */
+public class SchemaMigration {
+
+    private SchemaMigration() {
+    }
+
+    /**
+     * Run all steps in one write on the {@link DatabaseWriter}
+     *
+     * @return A {@link Future} that completes when the schema is up to date
+     */
+    public static Future<Void> migrate() {
+        return DatabaseWriter.getInstance().submit(() -> {
+            SQLiteDatabase db = Cache.openDatabase();
+            migrateDeliveryState(db);
+            migrateTimestamps(db);
+            migrateIndexes(db);
+            addColumnIfMissing(db, "contact", "profile_pic_hash", "TEXT"); // Thumbnails are moved by the AvatarStore
+            addColumnIfMissing(db, "user", "profile_pic_hash", "TEXT");
+            addColumnIfMissing(db, "contact", "etag", "TEXT");
+            addColumnIfMissing(db, "contact", "public_key_etag", "TEXT");
+        });
+    }
+
+    /**
+     * Track outgoing messages with an explicit delivery state. Sent rows become SENT and unsent outgoing rows PENDING.
+     *
+     * @param db
+     */
+    private static void migrateDeliveryState(SQLiteDatabase db) {
+        if (hasColumn(db, "message", "delivery_state")) {
+            return;
+        }
+
+        db.execSQL("ALTER TABLE message ADD COLUMN delivery_state TEXT");
+        addColumnIfMissing(db, "message", "attempts", "INTEGER DEFAULT 0");
+        addColumnIfMissing(db, "message", "next_attempt", "INTEGER DEFAULT 0");
+        db.execSQL("UPDATE message SET delivery_state = 'SENT' WHERE sent = 1");
+        db.execSQL("UPDATE message SET delivery_state = 'PENDING' WHERE sent = 0"
+                + " AND uid_to = (SELECT uid FROM chat WHERE chat.cid = message.cid)");
+    }
+
+    /**
+     * Store timestamps as epoch millis. Legacy date strings are converted only in the run that adds the new column,
+     * because SQLite can't drop the legacy column and the conversion must not overwrite newer values later.
+     *
+     * @param db
+     */
+    private static void migrateTimestamps(SQLiteDatabase db) {
+        if (!hasColumn(db, "message", "timestamp_ms")) {
+            db.execSQL("ALTER TABLE message ADD COLUMN timestamp_ms INTEGER DEFAULT 0");
+            if (hasColumn(db, "message", "timestamp")) {
+                db.execSQL("UPDATE message SET timestamp_ms = CAST(strftime('%s', timestamp, 'utc') AS INTEGER) * 1000"
+                        + " WHERE timestamp IS NOT NULL");
+            }
+        }
+
+        if (!hasColumn(db, "chat", "last_timestamp_ms")) {
+            db.execSQL("ALTER TABLE chat ADD COLUMN last_timestamp_ms INTEGER DEFAULT 0");
+            if (hasColumn(db, "chat", "last_timestamp")) {
+                db.execSQL("UPDATE chat SET last_timestamp_ms = CAST(strftime('%s', last_timestamp, 'utc') AS INTEGER) * 1000"
+                        + " WHERE last_timestamp IS NOT NULL");
+            }
+        }
+
+        db.execSQL("DROP INDEX IF EXISTS index_message_cid_timestamp"); // Built on the legacy column
+    }
+
+    /**
+     * Add the unique and lookup indexes of the models. Upgraded databases may hold duplicates, which are removed
+     * before the unique index is created. Fresh databases already have the unique constraints of the models.
+     * The index names match the ones ActiveAndroid creates, so fresh databases don't get a second copy.
+     *
+     * @param db
+     */
+    private static void migrateIndexes(SQLiteDatabase db) {
+        boolean changed = false;
+
+        if (!hasUniqueIndex(db, "message", "mid")) {
+            db.execSQL("DELETE FROM message WHERE Id NOT IN (SELECT MIN(Id) FROM message GROUP BY mid)");
+            db.execSQL("CREATE UNIQUE INDEX IF NOT EXISTS unique_message_mid ON message(mid)");
+            changed = true;
+        }
+
+        if (!hasUniqueIndex(db, "chat", "uid")) {
+            // Move the messages of duplicate chats to the oldest chat of the same user
+            db.execSQL("UPDATE message SET cid = (SELECT kept.cid FROM chat kept WHERE kept.Id ="
+                    + " (SELECT MIN(other.Id) FROM chat other WHERE other.uid = (SELECT dup.uid FROM chat dup WHERE dup.cid = message.cid)))"
+                    + " WHERE cid IN (SELECT cid FROM chat WHERE Id NOT IN (SELECT MIN(Id) FROM chat GROUP BY uid))");
+            db.execSQL("DELETE FROM chat WHERE Id NOT IN (SELECT MIN(Id) FROM chat GROUP BY uid)");
+            db.execSQL("CREATE UNIQUE INDEX IF NOT EXISTS unique_chat_uid ON chat(uid)");
+            changed = true;
+        }
+
+        if (!hasUniqueIndex(db, "chat", "cid")) {
+            db.execSQL("DELETE FROM chat WHERE Id NOT IN (SELECT MIN(Id) FROM chat GROUP BY cid)");
+            db.execSQL("CREATE UNIQUE INDEX IF NOT EXISTS unique_chat_cid ON chat(cid)");
+            changed = true;
+        }
+
+        if (!hasUniqueIndex(db, "contact", "uid")) {
+            db.execSQL("DELETE FROM contact WHERE Id NOT IN (SELECT MAX(Id) FROM contact GROUP BY uid)");
+            db.execSQL("CREATE UNIQUE INDEX IF NOT EXISTS unique_contact_uid ON contact(uid)");
+            changed = true;
+        }
+
+        db.execSQL("CREATE INDEX IF NOT EXISTS index_message_cid_timestamp_ms ON message(cid, timestamp_ms)");
+        db.execSQL("CREATE INDEX IF NOT EXISTS index_chat_last_timestamp_ms ON chat(last_timestamp_ms)");
+        db.execSQL("CREATE INDEX IF NOT EXISTS index_message_sent ON message(sent)");
+        db.execSQL("CREATE INDEX IF NOT EXISTS index_message_delivery_state ON message(delivery_state)");
+
+        if (changed) {
+            db.execSQL("ANALYZE"); // Let the planner see the new indexes
+        }
+    }
+
+    private static void addColumnIfMissing(SQLiteDatabase db, String table, String column, String definition) {
+        if (!hasColumn(db, table, column)) {
+            db.execSQL("ALTER TABLE " + table + " ADD COLUMN " + column + " " + definition);
+        }
+    }
+
+    /**
+     * @param db
+     * @param table
+     * @param column
+     * @return If a unique index or constraint covers exactly this column
+     */
+    private static boolean hasUniqueIndex(SQLiteDatabase db, String table, String column) {
+        List<String> uniqueIndexes = new ArrayList<>();
+        Cursor indexes = db.rawQuery("PRAGMA index_list(" + table + ")", null);
+        try {
+            int nameIndex = indexes.getColumnIndexOrThrow("name");
+            int uniqueIndex = indexes.getColumnIndexOrThrow("unique");
+            while (indexes.moveToNext()) {
+                if (indexes.getInt(uniqueIndex) == 1) {
+                    uniqueIndexes.add(indexes.getString(nameIndex));
+                }
+            }
+        } finally {
+            indexes.close();
+        }
+
+        for (String index : uniqueIndexes) {
+            Cursor columns = db.rawQuery("PRAGMA index_info(" + index + ")", null);
+            try {
+                int nameIndex = columns.getColumnIndexOrThrow("name");
+                if (columns.getCount() == 1 && columns.moveToFirst() && column.equalsIgnoreCase(columns.getString(nameIndex))) {
+                    return true;
+                }
+            } finally {
+                columns.close();
+            }
+        }
+        return false;
+    }
+
+    private static boolean hasColumn(SQLiteDatabase db, String table, String column) {
+        Cursor cursor = db.rawQuery("PRAGMA table_info(" + table + ")", null);
+        try {
+            int nameIndex = cursor.getColumnIndexOrThrow("name");
+            while (cursor.moveToNext()) {
+                if (column.equalsIgnoreCase(cursor.getString(nameIndex))) {
+                    return true;
+                }
+            }
+            return false;
+        } finally {
+            cursor.close();
+        }
+    }
+}
@@ -2,9 +2,10 @@ package dev.leonlatsch.kolibri.database.interfaces;
 
 import com.activeandroid.Model;
 
-import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
 
+import dev.leonlatsch.kolibri.database.DatabaseWriter;
 import dev.leonlatsch.kolibri.database.EntityChangedListener;
 
 /**
@@ -20,12 +21,12 @@ public abstract class CacheInterface<T extends Model> extends BaseInterface {
     /**
      * Cached model to be synced with database a every transaction
      */
-    private T model = null;
+    private volatile T model = null; // Written on the DatabaseWriter, read on any thread
 
     /**
      * {@link List} of {@link EntityChangedListener}s that get notified when a model has changed
      */
-    private List<EntityChangedListener> listeners = new ArrayList<>();
+    private List<EntityChangedListener> listeners = new CopyOnWriteArrayList<>();
 
     /**
      * Adds a {@link EntityChangedListener} that gets notified when the model hat changed
@@ -37,14 +38,17 @@ public abstract class CacheInterface<T extends Model> extends BaseInterface {
     }
 
     /**
-     * Notify all listeners with the same model
+     * Notify all listeners with the same model once the current write is committed.
+     * Listeners may be called on the thread of the {@link DatabaseWriter}.
      *
      * @param model
      */
     void notifyListeners(T model) {
-        for (EntityChangedListener listener : listeners) {
-            listener.entityChanged(model);
-        }
+        DatabaseWriter.getInstance().afterCommit(() -> {
+            for (EntityChangedListener listener : listeners) {
+                listener.entityChanged(model);
+            }
+        });
     }
 
     public void save(T model) {
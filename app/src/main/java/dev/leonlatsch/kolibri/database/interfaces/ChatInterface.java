@@ -1,13 +1,25 @@
 package dev.leonlatsch.kolibri.database.interfaces;
 
+import android.content.Context;
+import android.database.Cursor;
+
+import com.activeandroid.Cache;
 import com.activeandroid.query.Delete;
 import com.activeandroid.query.Select;
 import com.activeandroid.query.Update;
 
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.Future;
 
+import dev.leonlatsch.kolibri.database.DatabaseWriter;
+import dev.leonlatsch.kolibri.database.MessageIdFilter;
+import dev.leonlatsch.kolibri.database.MessageIndex;
 import dev.leonlatsch.kolibri.database.model.Chat;
+import dev.leonlatsch.kolibri.database.model.DeliveryState;
 import dev.leonlatsch.kolibri.database.model.Message;
+import dev.leonlatsch.kolibri.settings.Config;
 
 /**
  * Database interface to persist chats and messages
@@ -17,27 +29,66 @@ import dev.leonlatsch.kolibri.database.model.Message;
  */
 public class ChatInterface extends BaseInterface {
 
-    private static final String QUEUE_CID_WHERE = "cid = ?";
+    static final String QUEUE_CID_WHERE = "cid = ?";
     private static final String QUEUE_MID_WHERE = "mid = ?";
     private static final String QUEUE_UID_WHERE = "uid = ?";
+    private static final String QUEUE_WITHOUT_CHAT_WHERE = "uid_from = ? AND cid IS NULL";
+    private static final String QUEUE_NO_CHAT_WHERE = "cid IS NULL";
+    private static final String QUEUE_STATE_WHERE = "delivery_state = ?";
+    static final String QUEUE_MESSAGES_BEFORE_WHERE = "cid = ? AND (timestamp_ms < ? OR (timestamp_ms = ? AND Id < ?))";
+    static final String QUEUE_MESSAGES_AFTER_WHERE = "cid = ? AND (timestamp_ms > ? OR (timestamp_ms = ? AND Id > ?))";
+    static final String ORDER_NEWEST_FIRST = "timestamp_ms DESC, Id DESC"; // Walks index_message_cid_timestamp_ms backwards
+    static final String ORDER_OLDEST_FIRST = "timestamp_ms ASC, Id ASC";
+
+    private static final boolean DEFAULT_BLOOM_FILTER = true;
 
     private static ChatInterface chatInterface; // Singleton
+    private static boolean bloomFilter = DEFAULT_BLOOM_FILTER;
+
+    /**
+     * Answers most message id lookups from memory
+     */
+    private final MessageIdFilter messageIdFilter;
+
+    /**
+     * Full text index over the message contents
+     */
+    private final MessageIndex messageIndex;
 
-    private ChatInterface() {
+    /**
+     * @param bloomFilter If the message ids should be checked with a Bloom filter before querying the database
+     */
+    private ChatInterface(boolean bloomFilter) {
+        messageIdFilter = new MessageIdFilter(bloomFilter);
+        messageIdFilter.build();
+        DatabaseWriter.getInstance().addRollbackListener(messageIdFilter::clearRecent); // Rolled back mids may be recorded
+        messageIndex = new MessageIndex();
+        messageIndex.schedule(); // Creates the index and indexes messages saved before it existed
+    }
+
+    /**
+     * Read the settings from shared preferences. Only applies if called before the first {@link #getInstance()},
+     * otherwise the defaults are used.
+     *
+     * @param context
+     */
+    public static void initialize(Context context) {
+        bloomFilter = Config.getSharedPreferences(context).getBoolean(Config.KEY_APP_MESSAGE_ID_BLOOM_FILTER, DEFAULT_BLOOM_FILTER);
     }
 
     public static ChatInterface getInstance() {
         if (chatInterface == null) {
-            chatInterface = new ChatInterface();
+            chatInterface = new ChatInterface(bloomFilter);
         }
 
         return chatInterface;
     }
 
     public void saveMessage(Message message) {
-        Message savedMessage = new Select().from(Message.class).where(QUEUE_MID_WHERE, message.getMid()).executeSingle();
-        if (savedMessage == null) {
+        if (!messageExists(message)) {
             message.save();
+            messageIdFilter.add(message.getMid()); // Cleared by the writer if the save rolls back
+            DatabaseWriter.getInstance().afterCommit(messageIndex::schedule);
         }
     }
 
@@ -48,7 +99,7 @@ public class ChatInterface extends BaseInterface {
     }
 
     public void updateChat(Chat chat) {
-        new Update(Chat.class).set("cid = ?, uid = ?, unread_messages = ?, last_message = ?, last_timestamp = ?", chat.getCid(),
+        new Update(Chat.class).set("cid = ?, uid = ?, unread_messages = ?, last_message = ?, last_timestamp_ms = ?", chat.getCid(),
                 chat.getUid(), chat.getUnreadMessages(), chat.getLastMessage(), chat.getLastTimestamp())
                 .where(QUEUE_CID_WHERE, chat.getCid()).execute();
     }
@@ -57,30 +108,207 @@ public class ChatInterface extends BaseInterface {
         new Update(Message.class).set("sent = ?", message.isSent() ? 1 : 0).where(QUEUE_MID_WHERE, message.getMid()).execute();
     }
 
+    /**
+     * Assign all messages from a sender that are not assigned to a chat yet
+     *
+     * @param cid The chat to assign the messages to
+     * @param uid The sender
+     * @return The amount of assigned messages
+     */
+    public int assignMessagesToChat(String cid, String uid) {
+        int count = new Select().from(Message.class).where(QUEUE_WITHOUT_CHAT_WHERE, uid).count();
+        if (count > 0) {
+            new Update(Message.class).set("cid = ?", cid).where(QUEUE_WITHOUT_CHAT_WHERE, uid).execute();
+        }
+        return count;
+    }
+
+    /**
+     * Get the messages that wait for their sender to be resolved
+     *
+     * @return One message per unknown sender
+     */
+    public List<Message> getMessagesWithoutChat() {
+        return new Select().from(Message.class).where(QUEUE_NO_CHAT_WHERE).groupBy("uid_from").execute();
+    }
+
+    /**
+     * Mark multiple messages as sent with one update
+     *
+     * @param mids The ids of the sent messages
+     */
+    public void setMessagesSent(List<String> mids) {
+        if (mids.isEmpty()) {
+            return;
+        }
+
+        new Update(Message.class).set("sent = 1, delivery_state = ?", DeliveryState.SENT.name())
+                .where(midIn(mids.size()), mids.toArray()).execute();
+    }
+
+    /**
+     * Mark multiple messages as never sendable
+     *
+     * @param mids
+     */
+    public void setMessagesFailed(List<String> mids) {
+        if (mids.isEmpty()) {
+            return;
+        }
+
+        new Update(Message.class).set("delivery_state = ?", DeliveryState.FAILED.name())
+                .where(midIn(mids.size()), mids.toArray()).execute();
+    }
+
+    /**
+     * Atomically claim pending messages for sending.
+     * A message can only be claimed once until it is released again, so it is never sent twice in parallel.
+     * Must run on the {@link dev.leonlatsch.kolibri.database.DatabaseWriter}, whose transaction makes the select and update atomic.
+     *
+     * @param mids The ids of the messages to claim
+     * @return The ids of the messages that were claimed
+     */
+    public List<String> claimMessages(List<String> mids) {
+        List<String> claimed = new ArrayList<>();
+        if (mids.isEmpty()) {
+            return claimed;
+        }
+
+        String[] args = new String[mids.size() + 1];
+        args[0] = DeliveryState.PENDING.name();
+        for (int i = 0; i < mids.size(); i++) {
+            args[i + 1] = mids.get(i);
+        }
+
+        Cursor cursor = Cache.openDatabase().rawQuery("SELECT mid FROM message WHERE " + QUEUE_STATE_WHERE + " AND " + midIn(mids.size()), args);
+        try {
+            while (cursor.moveToNext()) {
+                claimed.add(cursor.getString(0));
+            }
+        } finally {
+            cursor.close();
+        }
+
+        if (!claimed.isEmpty()) {
+            new Update(Message.class).set("delivery_state = ?, attempts = attempts + 1", DeliveryState.IN_FLIGHT.name())
+                    .where(midIn(claimed.size()), claimed.toArray()).execute();
+        }
+
+        return claimed;
+    }
+
+    /**
+     * Release claimed messages that could not be sent
+     *
+     * @param mids        The ids of the claimed messages
+     * @param nextAttempt The time in ms of the next attempt
+     */
+    public void releaseMessages(List<String> mids, long nextAttempt) {
+        if (mids.isEmpty()) {
+            return;
+        }
+
+        Object[] args = new Object[mids.size() + 1];
+        args[0] = DeliveryState.IN_FLIGHT.name();
+        for (int i = 0; i < mids.size(); i++) {
+            args[i + 1] = mids.get(i);
+        }
+        new Update(Message.class).set("delivery_state = ?, next_attempt = ?", DeliveryState.PENDING.name(), nextAttempt)
+                .where(QUEUE_STATE_WHERE + " AND " + midIn(mids.size()), args).execute();
+    }
+
+    /**
+     * Release all claimed messages. Called on start, because messages can only be in flight while the outbox runs.
+     */
+    public void releaseAllMessages() {
+        new Update(Message.class).set("delivery_state = ?", DeliveryState.PENDING.name())
+                .where(QUEUE_STATE_WHERE, DeliveryState.IN_FLIGHT.name()).execute();
+    }
+
     public boolean messageExists(Message message) {
-        return new Select().from(Message.class).where(QUEUE_MID_WHERE, message.getMid()).executeSingle() != null;
+        switch (messageIdFilter.check(message.getMid())) {
+            case PRESENT:
+                return true;
+            case ABSENT:
+                return false;
+            default:
+                boolean exists = new Select().from(Message.class).where(QUEUE_MID_WHERE, message.getMid()).executeSingle() != null;
+                if (exists) {
+                    messageIdFilter.add(message.getMid());
+                }
+                return exists;
+        }
     }
 
     public boolean chatExists(Chat chat) {
         return new Select().from(Chat.class).where(QUEUE_CID_WHERE, chat.getCid()).executeSingle() != null;
     }
 
-    public void deleteChat(String cid) {
-        new Delete().from(Chat.class).where(QUEUE_CID_WHERE, cid).execute();
-        new Delete().from(Message.class).where(QUEUE_CID_WHERE, cid).execute();
+    /**
+     * Delete a chat and its messages on the {@link DatabaseWriter}
+     *
+     * @param cid
+     * @return A {@link Future} that completes when the delete is committed
+     */
+    public Future<Void> deleteChat(String cid) {
+        return DatabaseWriter.getInstance().submit(() -> {
+            messageIndex.deleteChat(cid);
+            new Delete().from(Chat.class).where(QUEUE_CID_WHERE, cid).execute();
+            new Delete().from(Message.class).where(QUEUE_CID_WHERE, cid).execute();
+            messageIdFilter.clearRecent();
+        });
+    }
+
+    /**
+     * Delete all chats and messages on the {@link DatabaseWriter}
+     *
+     * @return A {@link Future} that completes when the delete is committed
+     */
+    public Future<Void> deleteAll() {
+        return DatabaseWriter.getInstance().submit(() -> {
+            messageIndex.deleteAll();
+            new Delete().from(Chat.class).execute();
+            new Delete().from(Message.class).execute();
+            messageIdFilter.reset();
+        });
     }
 
-    public void deleteAll() {
-        new Delete().from(Chat.class).execute();
-        new Delete().from(Message.class).execute();
+    /**
+     * Get the filter in front of the message id lookups, eg. to read its hit and miss counters
+     *
+     * @return The {@link MessageIdFilter}
+     */
+    public MessageIdFilter getMessageIdFilter() {
+        return messageIdFilter;
+    }
+
+    /**
+     * Search all messages. The index may lag a moment behind newly saved messages.
+     *
+     * @param query  The text entered by the user
+     * @param limit  The max amount of hits
+     * @param offset The amount of hits to skip
+     * @return The hits, best first
+     */
+    public List<MessageIndex.Hit> search(String query, int limit, int offset) {
+        return messageIndex.search(query, limit, offset);
     }
 
     public List<Chat> getALl() {
         return new Select().from(Chat.class).execute();
     }
 
+    /**
+     * Get all chats, newest first. Sorted by the index on the last timestamp.
+     *
+     * @return
+     */
+    public List<Chat> getAllByRecency() {
+        return new Select().from(Chat.class).orderBy("last_timestamp_ms DESC, Id DESC").execute();
+    }
+
     public List<Message> getAllUnsentMessages() {
-        return new Select().from(Message.class).where("sent = ?", false).execute();
+        return new Select().from(Message.class).where(QUEUE_STATE_WHERE, DeliveryState.PENDING.name()).orderBy("Id ASC").execute();
     }
 
     public Chat getChat(String cid) {
@@ -95,11 +323,79 @@ public class ChatInterface extends BaseInterface {
         return new Select().from(Chat.class).where(QUEUE_UID_WHERE, uid).executeSingle();
     }
 
-    public List<Message> getMessagesForChat(String cid) {
-        return new Select().from(Message.class).where(QUEUE_CID_WHERE, cid).execute();
+    /**
+     * Get the newest messages of a chat
+     *
+     * @param cid
+     * @param limit The max amount of messages
+     * @return The messages in ascending order
+     */
+    public List<Message> getNewestMessages(String cid, int limit) {
+        List<Message> messages = new Select().from(Message.class).where(QUEUE_CID_WHERE, cid)
+                .orderBy(ORDER_NEWEST_FIRST).limit(limit).execute();
+        Collections.reverse(messages);
+        return messages;
+    }
+
+    /**
+     * Get the messages of a chat that are older than a message.
+     * Uses the (timestamp, id) key of the message instead of a offset, so the page is found by the index.
+     *
+     * @param cid
+     * @param before The oldest loaded message
+     * @param limit  The max amount of messages
+     * @return The messages in ascending order
+     */
+    public List<Message> getMessagesBefore(String cid, Message before, int limit) {
+        List<Message> messages = new Select().from(Message.class).where(QUEUE_MESSAGES_BEFORE_WHERE, cid,
+                before.getTimestamp(), before.getTimestamp(), keysetId(before))
+                .orderBy(ORDER_NEWEST_FIRST).limit(limit).execute();
+        Collections.reverse(messages);
+        return messages;
+    }
+
+    /**
+     * Get the messages of a chat that are newer than a message
+     *
+     * @param cid
+     * @param after The newest loaded message
+     * @param limit The max amount of messages
+     * @return The messages in ascending order
+     */
+    public List<Message> getMessagesAfter(String cid, Message after, int limit) {
+        return new Select().from(Message.class).where(QUEUE_MESSAGES_AFTER_WHERE, cid,
+                after.getTimestamp(), after.getTimestamp(), keysetId(after))
+                .orderBy(ORDER_OLDEST_FIRST).limit(limit).execute();
+    }
+
+    /**
+     * The id of a message for the (timestamp, id) key. A message added by the UI only gets its id when it is saved.
+     * Until then it is newer than every saved message with the same timestamp.
+     *
+     * @param message
+     * @return The id of the saved message or {@link Long#MAX_VALUE} if it is not saved yet
+     */
+    private Long keysetId(Message message) {
+        if (message.getId() != null) {
+            return message.getId();
+        }
+        Message saved = getMessage(message.getMid());
+        return saved != null ? saved.getId() : Long.MAX_VALUE;
+    }
+
+    public Message getLastMessage(String cid) {
+        return new Select().from(Message.class).where(QUEUE_CID_WHERE, cid).orderBy(ORDER_NEWEST_FIRST).executeSingle();
     }
 
     public Message getMessage(String mid) {
         return new Select().from(Message.class).where(QUEUE_MID_WHERE, mid).executeSingle();
     }
+
+    private static String midIn(int count) {
+        StringBuilder where = new StringBuilder("mid IN (");
+        for (int i = 0; i < count; i++) {
+            where.append(i == 0 ? "?" : ", ?");
+        }
+        return where.append(")").toString();
+    }
 }
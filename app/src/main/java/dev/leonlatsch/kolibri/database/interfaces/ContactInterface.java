@@ -4,14 +4,24 @@ import com.activeandroid.query.Delete;
 import com.activeandroid.query.Select;
 import com.activeandroid.query.Update;
 
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
+import dev.leonlatsch.kolibri.database.DatabaseWriter;
+import dev.leonlatsch.kolibri.database.EntityChangedListener;
 import dev.leonlatsch.kolibri.database.model.Contact;
 import dev.leonlatsch.kolibri.database.model.User;
 import dev.leonlatsch.kolibri.rest.dto.UserDTO;
 
 /**
- * Database interface to persist contacts
+ * Database interface to persist contacts.
+ * <p>
+ * All contacts are held in memory by uid. They are loaded with one query on the first access
+ * and kept in sync by every write of this interface, so reads never touch the database.
+ * Reads return copies, so changing a returned contact never changes the cache. Changes only become visible
+ * to other readers when they are written with this interface.
  *
  * @author Leon Latsch
  * @since 1.0.0
@@ -22,8 +32,18 @@ public class ContactInterface extends BaseInterface {
 
     private static ContactInterface contactInterface; // Singleton
 
+    /**
+     * All contacts by uid. Null until loaded.
+     */
+    private Map<String, Contact> cache;
+
+    /**
+     * {@link List} of {@link EntityChangedListener}s that get notified when a contact has changed
+     */
+    private final List<EntityChangedListener<Contact>> listeners = new ArrayList<>();
 
     private ContactInterface() {
+        DatabaseWriter.getInstance().addRollbackListener(this::invalidateCache);
     }
 
     public static ContactInterface getInstance() {
@@ -34,24 +54,66 @@ public class ContactInterface extends BaseInterface {
         return contactInterface;
     }
 
-    public Contact getContact(String uid) {
-        return new Select().from(Contact.class).where(QUEUE_UID_WHERE, uid).executeSingle();
+    /**
+     * Adds a {@link EntityChangedListener} that gets notified when a change of a contact is committed.
+     * A deleted contact is notified with null.
+     *
+     * @param listener the listener to add
+     */
+    public synchronized void addEntityChangedListener(EntityChangedListener<Contact> listener) {
+        listeners.add(listener);
+    }
+
+    public synchronized void removeEntityChangedListener(EntityChangedListener<Contact> listener) {
+        listeners.remove(listener);
     }
 
-    public List<Contact> getALl() {
-        return new Select().from(Contact.class).execute();
+    /**
+     * @param uid
+     * @return A copy of the contact or null
+     */
+    public synchronized Contact getContact(String uid) {
+        Contact contact = getCache().get(uid);
+        return contact != null ? new Contact(contact) : null;
+    }
+
+    /**
+     * @return Copies of all contacts
+     */
+    public synchronized List<Contact> getALl() {
+        List<Contact> contacts = new ArrayList<>(getCache().size());
+        for (Contact contact : getCache().values()) {
+            contacts.add(new Contact(contact));
+        }
+        return contacts;
     }
 
     public void delete(Contact contact) {
-        contact.delete();
+        delete(contact.getUid()); // Copies have no row Id
     }
 
     public void delete(String uid) {
         new Delete().from(Contact.class).where(QUEUE_UID_WHERE, uid).execute();
+        synchronized (this) {
+            getCache().remove(uid);
+        }
+        notifyListeners(null);
     }
 
     public void deleteAll() {
         new Delete().from(Contact.class).execute();
+        synchronized (this) {
+            cache = new HashMap<>();
+        }
+        notifyListeners(null);
+    }
+
+    /**
+     * Drop the cached contacts. They are loaded again on the next access.
+     * Called by the {@link DatabaseWriter} when a write was rolled back.
+     */
+    public synchronized void invalidateCache() {
+        cache = null;
     }
 
     public String save(UserDTO userDTO, String publicKey) {
@@ -73,18 +135,65 @@ public class ContactInterface extends BaseInterface {
         }
 
         contact.save();
+        synchronized (this) {
+            getCache().put(contact.getUid(), new Contact(contact));
+        }
+        notifyListeners(contact);
         return contact.getUid();
     }
 
     public void updateContact(Contact contact) {
-        if (contact.getProfilePicTn() != null) {
-            new Update(Contact.class).set("uid = ?, username = ?, profile_pic_tn = ?, public_key = ?",
-                    contact.getUid(), contact.getUsername(), contact.getProfilePicTn(), contact.getPublicKey())
+        if (contact.getProfilePicHash() != null) {
+            new Update(Contact.class).set("uid = ?, username = ?, profile_pic_hash = ?, public_key = ?, etag = ?, public_key_etag = ?",
+                    contact.getUid(), contact.getUsername(), contact.getProfilePicHash(), contact.getPublicKey(),
+                    contact.getEtag(), contact.getPublicKeyEtag())
                     .where(QUEUE_UID_WHERE, contact.getUid()).execute();
         } else {
-            new Update(Contact.class).set("uid = ?, username = ?, public_key = ?",
-                    contact.getUid(), contact.getUsername(), contact.getPublicKey())
+            new Update(Contact.class).set("uid = ?, username = ?, public_key = ?, etag = ?, public_key_etag = ?",
+                    contact.getUid(), contact.getUsername(), contact.getPublicKey(), contact.getEtag(), contact.getPublicKeyEtag())
                     .where(QUEUE_UID_WHERE, contact.getUid()).execute();
         }
+
+        Contact updated = new Contact(contact);
+        synchronized (this) {
+            Contact cached = getCache().get(contact.getUid());
+            if (updated.getProfilePicHash() == null && cached != null) {
+                updated.setProfilePicHash(cached.getProfilePicHash()); // The row keeps it as well
+            }
+            getCache().put(updated.getUid(), updated);
+        }
+        notifyListeners(new Contact(updated));
+    }
+
+    /**
+     * Get the cache and load all contacts in one query if needed. Must be called while holding the lock.
+     *
+     * @return The contacts by uid
+     */
+    private Map<String, Contact> getCache() {
+        if (cache == null) {
+            cache = new HashMap<>();
+            for (Contact contact : new Select().from(Contact.class).<Contact>execute()) {
+                cache.put(contact.getUid(), contact);
+            }
+        }
+        return cache;
+    }
+
+    /**
+     * Notify the listeners once the current write is committed
+     *
+     * @param contact The changed contact or null if contacts were deleted
+     */
+    private void notifyListeners(Contact contact) {
+        DatabaseWriter.getInstance().afterCommit(() -> {
+            List<EntityChangedListener<Contact>> current;
+            synchronized (this) {
+                current = new ArrayList<>(listeners);
+            }
+            for (EntityChangedListener<Contact> listener : current) {
+                listener.entityChanged(contact);
+            }
+        });
     }
 }
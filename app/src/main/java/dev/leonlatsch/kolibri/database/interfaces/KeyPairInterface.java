@@ -16,6 +16,11 @@ public class KeyPairInterface extends BaseInterface {
 
     private static KeyPairInterface keyPairInterface; // Singleton
 
+    /**
+     * The key pair of the logged in user. It is needed for every received message, so it is kept in memory
+     */
+    private volatile KeyPair cached;
+
     private KeyPairInterface() {
     }
 
@@ -36,10 +41,11 @@ public class KeyPairInterface extends BaseInterface {
 
         if (saved == null) {
             keyPair.save();
-            return keyPair;
-        } else {
-            return saved;
+            saved = keyPair;
         }
+
+        cached = saved;
+        return saved;
     }
 
     public KeyPair createOrGet(KeyPair keyPair, String uid) {
@@ -52,6 +58,19 @@ public class KeyPairInterface extends BaseInterface {
     }
 
     public KeyPair get(String uid) {
-        return new Select().from(KeyPair.class).where(QUEUE_UID_WHERE, uid).executeSingle();
+        KeyPair keyPair = cached;
+        if (keyPair == null || !keyPair.getUid().equals(uid)) {
+            keyPair = new Select().from(KeyPair.class).where(QUEUE_UID_WHERE, uid).executeSingle();
+            cached = keyPair;
+        }
+
+        return keyPair;
+    }
+
+    /**
+     * Remove the cached key pair from memory. Called on logout.
+     */
+    public void clearCache() {
+        cached = null;
     }
 }
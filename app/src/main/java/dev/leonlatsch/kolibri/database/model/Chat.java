@@ -11,10 +11,10 @@ import com.activeandroid.annotation.Table;
 @Table(name = "chat")
 public class Chat extends Model {
 
-    @Column(name = "cid", index = true)
+    @Column(name = "cid", index = true, unique = true)
     private String cid;
 
-    @Column(name = "uid")
+    @Column(name = "uid", unique = true)
     private String uid;
 
     @Column(name = "unread_messages")
@@ -23,13 +23,13 @@ public class Chat extends Model {
     @Column(name = "last_message")
     private String lastMessage;
 
-    @Column(name = "last_timestamp")
-    private String lastTimestamp;
+    @Column(name = "last_timestamp_ms", index = true)
+    private long lastTimestamp; // Epoch millis
 
     public Chat() {
     }
 
-    public Chat(String cid, String uid, int unreadMessages, String lastMessage, String lastTimestamp) {
+    public Chat(String cid, String uid, int unreadMessages, String lastMessage, long lastTimestamp) {
         this.cid = cid;
         this.uid = uid;
         this.unreadMessages = unreadMessages;
@@ -69,11 +69,11 @@ public class Chat extends Model {
         this.lastMessage = lastMessage;
     }
 
-    public String getLastTimestamp() {
+    public long getLastTimestamp() {
         return lastTimestamp;
     }
 
-    public void setLastTimestamp(String lastTimestamp) {
+    public void setLastTimestamp(long lastTimestamp) {
         this.lastTimestamp = lastTimestamp;
     }
 }
@@ -11,28 +11,48 @@ import com.activeandroid.annotation.Table;
 @Table(name = "contact")
 public class Contact extends Model {
 
-    @Column(name = "uid", index = true)
+    @Column(name = "uid", index = true, unique = true)
     private String uid;
 
     @Column(name = "username")
     private String username;
 
-    @Column(name = "profile_pic_tn")
-    private String profilePicTn;
+    @Column(name = "profile_pic_hash")
+    private String profilePicHash; // Hash of the thumbnail in the AvatarStore
 
     @Column(name = "public_key")
     private String publicKey;
 
+    @Column(name = "etag")
+    private String etag; // Version of the user in the backend
+
+    @Column(name = "public_key_etag")
+    private String publicKeyEtag; // Version of the public key in the backend
+
     public Contact() {
     }
 
-    public Contact(String uid, String username, String profilePicTn, String publicKey) {
+    public Contact(String uid, String username, String profilePicHash, String publicKey) {
         this.uid = uid;
         this.username = username;
-        this.profilePicTn = profilePicTn;
+        this.profilePicHash = profilePicHash;
         this.publicKey = publicKey;
     }
 
+    /**
+     * Copy all columns of a contact. The copy has no row Id.
+     *
+     * @param contact
+     */
+    public Contact(Contact contact) {
+        this.uid = contact.uid;
+        this.username = contact.username;
+        this.profilePicHash = contact.profilePicHash;
+        this.publicKey = contact.publicKey;
+        this.etag = contact.etag;
+        this.publicKeyEtag = contact.publicKeyEtag;
+    }
+
     public String getUid() {
         return uid;
     }
@@ -49,12 +69,12 @@ public class Contact extends Model {
         this.username = username;
     }
 
-    public String getProfilePicTn() {
-        return profilePicTn;
+    public String getProfilePicHash() {
+        return profilePicHash;
     }
 
-    public void setProfilePicTn(String profilePicTn) {
-        this.profilePicTn = profilePicTn;
+    public void setProfilePicHash(String profilePicHash) {
+        this.profilePicHash = profilePicHash;
     }
 
     public String getPublicKey() {
@@ -64,4 +84,20 @@ public class Contact extends Model {
     public void setPublicKey(String publicKey) {
         this.publicKey = publicKey;
     }
+
+    public String getEtag() {
+        return etag;
+    }
+
+    public void setEtag(String etag) {
+        this.etag = etag;
+    }
+
+    public String getPublicKeyEtag() {
+        return publicKeyEtag;
+    }
+
+    public void setPublicKeyEtag(String publicKeyEtag) {
+        this.publicKeyEtag = publicKeyEtag;
+    }
 }
@@ -0,0 +1,15 @@
+package dev.leonlatsch.kolibri.database.model;
+
+/**
+ * Delivery state of a outgoing message.
+ * Received messages have no delivery state.
+ *
+ * @author Leon Latsch
+ * @since 1.0.0
+ */
+public enum DeliveryState {
+    PENDING, // Waiting for the outbox
+    IN_FLIGHT, // Claimed by the outbox and being sent
+    SENT, // Accepted by the backend
+    FAILED // Can never be sent
+}
@@ -11,10 +11,10 @@ import com.activeandroid.annotation.Table;
 @Table(name = "message")
 public class Message extends Model {
 
-    @Column(name = "mid", index = true)
+    @Column(name = "mid", index = true, unique = true)
     private String mid;
 
-    @Column(name = "cid")
+    @Column(name = "cid", indexGroups = {"cid_timestamp_ms"})
     private String cid;
 
     @Column(name = "uid_from")
@@ -26,19 +26,28 @@ public class Message extends Model {
     @Column(name = "type")
     private MessageType type;
 
-    @Column(name = "timestamp")
-    private String timestamp;
+    @Column(name = "timestamp_ms", indexGroups = {"cid_timestamp_ms"})
+    private long timestamp; // Epoch millis
 
     @Column(name = "content")
     private String content;
 
-    @Column(name = "sent")
+    @Column(name = "sent", index = true)
     private boolean sent;
 
+    @Column(name = "delivery_state", index = true)
+    private DeliveryState deliveryState;
+
+    @Column(name = "attempts")
+    private int attempts;
+
+    @Column(name = "next_attempt")
+    private long nextAttempt;
+
     public Message() {
     }
 
-    public Message(String mid, String cid, String from, String to, MessageType type, String timestamp, String content) {
+    public Message(String mid, String cid, String from, String to, MessageType type, long timestamp, String content) {
         this.mid = mid;
         this.cid = cid;
         this.from = from;
@@ -89,11 +98,11 @@ public class Message extends Model {
         this.type = type;
     }
 
-    public String getTimestamp() {
+    public long getTimestamp() {
         return timestamp;
     }
 
-    public void setTimestamp(String timestamp) {
+    public void setTimestamp(long timestamp) {
         this.timestamp = timestamp;
     }
 
@@ -112,4 +121,28 @@ public class Message extends Model {
     public void setSent(boolean sent) {
         this.sent = sent;
     }
+
+    public DeliveryState getDeliveryState() {
+        return deliveryState;
+    }
+
+    public void setDeliveryState(DeliveryState deliveryState) {
+        this.deliveryState = deliveryState;
+    }
+
+    public int getAttempts() {
+        return attempts;
+    }
+
+    public void setAttempts(int attempts) {
+        this.attempts = attempts;
+    }
+
+    public long getNextAttempt() {
+        return nextAttempt;
+    }
+
+    public void setNextAttempt(long nextAttempt) {
+        this.nextAttempt = nextAttempt;
+    }
 }
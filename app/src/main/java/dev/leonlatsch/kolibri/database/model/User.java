@@ -23,8 +23,8 @@ public class User extends Model {
     @Column(name = "password")
     private String password;
 
-    @Column(name = "profile_pic_tn")
-    private String profilePicTn;
+    @Column(name = "profile_pic_hash")
+    private String profilePicHash; // Hash of the thumbnail in the AvatarStore
 
     @Column(name = "token")
     private String accessToken;
@@ -32,12 +32,12 @@ public class User extends Model {
     public User() {
     }
 
-    public User(String uid, String username, String email, String password, String profilePicTn, String accessToken, String privateKey) {
+    public User(String uid, String username, String email, String password, String profilePicHash, String accessToken, String privateKey) {
         this.uid = uid;
         this.username = username;
         this.email = email;
         this.password = password;
-        this.profilePicTn = profilePicTn;
+        this.profilePicHash = profilePicHash;
         this.accessToken = accessToken;
     }
 
@@ -73,12 +73,12 @@ public class User extends Model {
         this.password = password;
     }
 
-    public String getProfilePicTn() {
-        return profilePicTn;
+    public String getProfilePicHash() {
+        return profilePicHash;
     }
 
-    public void setProfilePicTn(String profilePicTn) {
-        this.profilePicTn = profilePicTn;
+    public void setProfilePicHash(String profilePicHash) {
+        this.profilePicHash = profilePicHash;
     }
 
     public String getAccessToken() {
@@ -0,0 +1,37 @@
+package dev.leonlatsch.kolibri.rest.dto;
+
+/**
+ * Result for one message of a batch send
+ *
+ * @author Leon Latsch
+ * @since 1.0.0
+ */
+public class SendResultDTO {
+
+    private String mid;
+    private boolean sent;
+
+    public SendResultDTO() {
+    }
+
+    public SendResultDTO(String mid, boolean sent) {
+        this.mid = mid;
+        this.sent = sent;
+    }
+
+    public String getMid() {
+        return mid;
+    }
+
+    public void setMid(String mid) {
+        this.mid = mid;
+    }
+
+    public boolean isSent() {
+        return sent;
+    }
+
+    public void setSent(boolean sent) {
+        this.sent = sent;
+    }
+}
@@ -0,0 +1,68 @@
+package dev.leonlatsch.kolibri.rest.dto;
+
+/**
+ * Result for one user of a bulk fetch.
+ * The user and the public key are null if the sent version is current.
+ *
+ * @author Leon Latsch
+ * @since 1.0.0
+ */
+public class UserUpdateDTO {
+
+    private String uid;
+    private UserDTO user;
+    private String etag;
+    private String publicKey;
+    private String publicKeyEtag;
+
+    public UserUpdateDTO() {
+    }
+
+    public UserUpdateDTO(String uid, UserDTO user, String etag, String publicKey, String publicKeyEtag) {
+        this.uid = uid;
+        this.user = user;
+        this.etag = etag;
+        this.publicKey = publicKey;
+        this.publicKeyEtag = publicKeyEtag;
+    }
+
+    public String getUid() {
+        return uid;
+    }
+
+    public void setUid(String uid) {
+        this.uid = uid;
+    }
+
+    public UserDTO getUser() {
+        return user;
+    }
+
+    public void setUser(UserDTO user) {
+        this.user = user;
+    }
+
+    public String getEtag() {
+        return etag;
+    }
+
+    public void setEtag(String etag) {
+        this.etag = etag;
+    }
+
+    public String getPublicKey() {
+        return publicKey;
+    }
+
+    public void setPublicKey(String publicKey) {
+        this.publicKey = publicKey;
+    }
+
+    public String getPublicKeyEtag() {
+        return publicKeyEtag;
+    }
+
+    public void setPublicKeyEtag(String publicKeyEtag) {
+        this.publicKeyEtag = publicKeyEtag;
+    }
+}
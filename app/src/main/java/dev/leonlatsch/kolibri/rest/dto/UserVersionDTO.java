@@ -0,0 +1,47 @@
+package dev.leonlatsch.kolibri.rest.dto;
+
+/**
+ * The known versions of a user, sent to fetch only what changed
+ *
+ * @author Leon Latsch
+ * @since 1.0.0
+ */
+public class UserVersionDTO {
+
+    private String uid;
+    private String etag;
+    private String publicKeyEtag;
+
+    public UserVersionDTO() {
+    }
+
+    public UserVersionDTO(String uid, String etag, String publicKeyEtag) {
+        this.uid = uid;
+        this.etag = etag;
+        this.publicKeyEtag = publicKeyEtag;
+    }
+
+    public String getUid() {
+        return uid;
+    }
+
+    public void setUid(String uid) {
+        this.uid = uid;
+    }
+
+    public String getEtag() {
+        return etag;
+    }
+
+    public void setEtag(String etag) {
+        this.etag = etag;
+    }
+
+    public String getPublicKeyEtag() {
+        return publicKeyEtag;
+    }
+
+    public void setPublicKeyEtag(String publicKeyEtag) {
+        this.publicKeyEtag = publicKeyEtag;
+    }
+}
@@ -8,6 +8,9 @@ public class Headers {
 
     public static final String ACCESS_TOKEN = "ACCESS-TOKEN"; // Header used for user access token
     public static final String PUBLIC_KEY = "PUBLIC-KEY"; // Header used for encoded public key
+    public static final String IDEMPOTENCY_KEY = "IDEMPOTENCY-KEY"; // Header used to detect resent requests
+    public static final String ETAG = "ETag"; // Header with the version of a resource
+    public static final String IF_NONE_MATCH = "If-None-Match"; // Header with a known version, answered with 304 if unchanged
 
     private Headers() {
     }
@@ -0,0 +1,55 @@
+package dev.leonlatsch.kolibri.rest.http;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+import dev.leonlatsch.kolibri.rest.dto.MessageDTO;
+
+/**
+ * Holds the shared {@link ObjectMapper} for the rest api and the broker.
+ * Creating a ObjectMapper and looking up its deserializers is expensive, so this is only done once.
+ *
+ * @author Leon Latsch
+ * @since 1.0.0
+ */
+public class JsonCodec {
+
+    private static final String WARM_UP_MESSAGE = "{\"mid\":\"\",\"from\":\"\",\"to\":\"\",\"type\":\"TEXT\",\"timestamp\":\"\",\"content\":\"\"}";
+
+    private static final ObjectMapper objectMapper = new ObjectMapper();
+    private static final ObjectReader messageReader = objectMapper.readerFor(MessageDTO.class);
+
+    static {
+        try {
+            messageReader.readValue(WARM_UP_MESSAGE.getBytes(StandardCharsets.UTF_8)); // Build the deserializer up front
+        } catch (IOException e) {
+            throw new IllegalStateException(e); // Should never happen
+        }
+    }
+
+    private JsonCodec() {
+    }
+
+    /**
+     * Get the shared ObjectMapper. Used by the retrofit converter.
+     *
+     * @return The shared ObjectMapper
+     */
+    public static ObjectMapper getObjectMapper() {
+        return objectMapper;
+    }
+
+    /**
+     * Read a {@link MessageDTO} directly from a UTF-8 encoded body
+     *
+     * @param body The raw message body
+     * @return The parsed MessageDTO
+     * @throws IOException If the body is not a valid message
+     */
+    public static MessageDTO readMessage(byte[] body) throws IOException {
+        return messageReader.readValue(body);
+    }
+}
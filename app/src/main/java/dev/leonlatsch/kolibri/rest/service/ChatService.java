@@ -1,7 +1,10 @@
 package dev.leonlatsch.kolibri.rest.service;
 
+import java.util.List;
+
 import dev.leonlatsch.kolibri.rest.dto.Container;
 import dev.leonlatsch.kolibri.rest.dto.MessageDTO;
+import dev.leonlatsch.kolibri.rest.dto.SendResultDTO;
 import dev.leonlatsch.kolibri.rest.http.Headers;
 import retrofit2.Call;
 import retrofit2.http.Body;
@@ -19,10 +22,22 @@ public interface ChatService {
     /**
      * Send a message to the backend which gets later pushed to the queue
      *
-     * @param accessToken The access token of teh sending user
-     * @param message     The {@link MessageDTO} to be sent
+     * @param accessToken    The access token of teh sending user
+     * @param idempotencyKey The mid of the message, so the backend can drop a resent message
+     * @param message        The {@link MessageDTO} to be sent
      * @return A empty {@link Container}
      */
     @PUT("api/v1/chat/send")
-    Call<Container<String>> send(@Header(Headers.ACCESS_TOKEN) String accessToken, @Body MessageDTO message);
+    Call<Container<String>> send(@Header(Headers.ACCESS_TOKEN) String accessToken, @Header(Headers.IDEMPOTENCY_KEY) String idempotencyKey,
+                                 @Body MessageDTO message);
+
+    /**
+     * Send multiple messages to the backend in one request
+     *
+     * @param accessToken The access token of the sending user
+     * @param messages    The {@link MessageDTO}s to be sent
+     * @return A {@link Container} with a {@link SendResultDTO} per message
+     */
+    @PUT("api/v1/chat/send/batch")
+    Call<Container<List<SendResultDTO>>> sendBatch(@Header(Headers.ACCESS_TOKEN) String accessToken, @Body List<MessageDTO> messages);
 }
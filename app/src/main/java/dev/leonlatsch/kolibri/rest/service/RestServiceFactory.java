@@ -3,6 +3,7 @@ package dev.leonlatsch.kolibri.rest.service;
 import android.content.Context;
 import android.content.SharedPreferences;
 
+import dev.leonlatsch.kolibri.rest.http.JsonCodec;
 import dev.leonlatsch.kolibri.rest.http.SSLHelper;
 import retrofit2.Retrofit;
 import retrofit2.converter.jackson.JacksonConverterFactory;
@@ -80,7 +81,7 @@ public class RestServiceFactory {
                 .baseUrl(BASE_URL)
                 .client(SSLHelper.getTrustAllCertHttpClient())
                 .addConverterFactory(ScalarsConverterFactory.create())
-                .addConverterFactory(JacksonConverterFactory.create())
+                .addConverterFactory(JacksonConverterFactory.create(JsonCodec.getObjectMapper()))
                 .build();
     }
 
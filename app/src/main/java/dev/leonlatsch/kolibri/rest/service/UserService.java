@@ -4,6 +4,8 @@ import java.util.List;
 
 import dev.leonlatsch.kolibri.rest.dto.Container;
 import dev.leonlatsch.kolibri.rest.dto.UserDTO;
+import dev.leonlatsch.kolibri.rest.dto.UserUpdateDTO;
+import dev.leonlatsch.kolibri.rest.dto.UserVersionDTO;
 import dev.leonlatsch.kolibri.rest.http.Headers;
 import retrofit2.Call;
 import retrofit2.http.Body;
@@ -11,6 +13,7 @@ import retrofit2.http.DELETE;
 import retrofit2.http.GET;
 import retrofit2.http.Header;
 import retrofit2.http.PATCH;
+import retrofit2.http.POST;
 import retrofit2.http.Path;
 
 /**
@@ -40,6 +43,28 @@ public interface UserService {
     @GET("api/v1/user/get/{uid}")
     Call<Container<UserDTO>> get(@Header(Headers.ACCESS_TOKEN) String accessToken, @Path("uid") String uid);
 
+    /**
+     * Get a user with a uid if it changed
+     *
+     * @param accessToken
+     * @param uid         The uid of the user
+     * @param etag        The {@link Headers#ETAG} of the known version or null
+     * @return A {@link Container} with the specified user or a empty 304 response if the known version is current
+     */
+    @GET("api/v1/user/get/{uid}")
+    Call<Container<UserDTO>> get(@Header(Headers.ACCESS_TOKEN) String accessToken, @Path("uid") String uid,
+                                 @Header(Headers.IF_NONE_MATCH) String etag);
+
+    /**
+     * Get many users with their public keys in one request
+     *
+     * @param accessToken
+     * @param versions    The uids with the {@link Headers#ETAG}s of the known versions
+     * @return A {@link Container} with a {@link UserUpdateDTO} per user
+     */
+    @POST("api/v1/user/get/bulk")
+    Call<Container<List<UserUpdateDTO>>> getBulk(@Header(Headers.ACCESS_TOKEN) String accessToken, @Body List<UserVersionDTO> versions);
+
     /**
      * Search for users with a username
      *
@@ -111,6 +136,18 @@ public interface UserService {
     @GET("api/v1/user/public-key/get/{uid}")
     Call<Container<String>> getPublicKey(@Header(Headers.ACCESS_TOKEN) String accessToken, @Path("uid") String uid);
 
+    /**
+     * Get the public key for a user if it changed
+     *
+     * @param accessToken
+     * @param uid
+     * @param etag        The {@link Headers#ETAG} of the known version or null
+     * @return A {@link Container} with a base64 encoded public key or a empty 304 response if the known version is current
+     */
+    @GET("api/v1/user/public-key/get/{uid}")
+    Call<Container<String>> getPublicKey(@Header(Headers.ACCESS_TOKEN) String accessToken, @Path("uid") String uid,
+                                         @Header(Headers.IF_NONE_MATCH) String etag);
+
     /**
      * Update your own public key in the backend
      *
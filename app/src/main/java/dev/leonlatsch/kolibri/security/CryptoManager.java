@@ -1,17 +1,28 @@
 package dev.leonlatsch.kolibri.security;
 
+import android.util.LruCache;
+
 import java.security.GeneralSecurityException;
 import java.security.KeyFactory;
 import java.security.KeyPairGenerator;
 import java.security.NoSuchAlgorithmException;
 import java.security.PrivateKey;
 import java.security.PublicKey;
+import java.security.SecureRandom;
 import java.security.spec.InvalidKeySpecException;
+import java.security.spec.MGF1ParameterSpec;
 import java.security.spec.PKCS8EncodedKeySpec;
 import java.security.spec.X509EncodedKeySpec;
 
 import javax.crypto.Cipher;
+import javax.crypto.KeyGenerator;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.OAEPParameterSpec;
+import javax.crypto.spec.PSource;
+import javax.crypto.spec.SecretKeySpec;
 
+import dev.leonlatsch.kolibri.database.model.Contact;
 import dev.leonlatsch.kolibri.database.model.KeyPair;
 import dev.leonlatsch.kolibri.util.Base64;
 
@@ -20,11 +31,64 @@ import dev.leonlatsch.kolibri.util.Base64;
  * @since 1.0.0
  * <p>
  * A Util class to manage end-to-end encryption of messages
+ * <p>
+ * Messages are encrypted with a AES-GCM session key per contact. The session key is wrapped with the
+ * contacts RSA public key (OAEP with SHA-256) once and sent along with every message in a versioned envelope:
+ * <pre>v2:[wrapped session key]:[iv]:[ciphertext]</pre>
+ * All parts are base64 encoded. Messages without a version prefix are plain RSA encrypted (version 1)
+ * and can still be decrypted.
  */
 public class CryptoManager {
 
     private static final String RSA = "RSA";
+    private static final String RSA_OAEP = "RSA/ECB/OAEPWithSHA-256AndMGF1Padding";
     private static final int KEY_SIZE = 2048;
+    private static final int PUBLIC_KEY_CACHE_SIZE = 64;
+
+    private static final String AES = "AES";
+    private static final String AES_GCM = "AES/GCM/NoPadding";
+    private static final int AES_KEY_SIZE = 256;
+    private static final int GCM_IV_SIZE = 12; // bytes
+    private static final int GCM_TAG_SIZE = 128; // bits
+
+    private static final String ENVELOPE_V2 = "v2";
+    private static final String ENVELOPE_SEPARATOR = ":"; // Not part of the base64 alphabet
+    private static final int ENVELOPE_V2_PARTS = 4;
+
+    /**
+     * Explicit, because providers differ in the default MGF1 digest of {@link #RSA_OAEP}
+     */
+    private static final OAEPParameterSpec OAEP_PARAMETERS = new OAEPParameterSpec("SHA-256", "MGF1", MGF1ParameterSpec.SHA256,
+            PSource.PSpecified.DEFAULT);
+
+    private static final SecureRandom secureRandom = new SecureRandom();
+
+    /**
+     * The private key of the logged in user, decoded once and reused for every received message
+     */
+    private static volatile CachedKey<PrivateKey> privateKeyCache;
+
+    /**
+     * Decoded public keys of contacts, keyed by uid
+     */
+    private static final LruCache<String, CachedKey<PublicKey>> publicKeyCache = new LruCache<>(PUBLIC_KEY_CACHE_SIZE);
+
+    /**
+     * Session keys for sending, keyed by the uid of the receiving contact
+     */
+    private static final LruCache<String, SessionKey> sessionKeyCache = new LruCache<>(PUBLIC_KEY_CACHE_SIZE);
+
+    /**
+     * Unwrapped session keys of received messages, keyed by the wrapped key
+     */
+    private static final LruCache<String, SecretKey> receivedSessionKeyCache = new LruCache<>(PUBLIC_KEY_CACHE_SIZE);
+
+    /**
+     * Cipher.getInstance is expensive, so every thread reuses its own instances
+     */
+    private static final ThreadLocal<Cipher> rsaCipher = new CipherThreadLocal(RSA);
+    private static final ThreadLocal<Cipher> oaepCipher = new CipherThreadLocal(RSA_OAEP);
+    private static final ThreadLocal<Cipher> aesCipher = new CipherThreadLocal(AES_GCM);
 
     /**
      * Generate a {@link KeyPair} with RSA 2048 bit
@@ -62,6 +126,66 @@ public class CryptoManager {
         return publicKey;
     }
 
+    /**
+     * Get the decoded public key of a contact from the cache or decode and cache it.
+     * A cached key is only used if its encoded form still matches the contacts key.
+     *
+     * @param uid              The uid of the contact
+     * @param encodedPublicKey The encoded public key of the contact
+     * @return The decoded public key
+     */
+    private static PublicKey getPublicKey(String uid, String encodedPublicKey) {
+        CachedKey<PublicKey> cached = publicKeyCache.get(uid);
+        if (cached != null && cached.encoded.equals(encodedPublicKey)) {
+            return cached.key;
+        }
+
+        PublicKey publicKey = decodePublicKey(encodedPublicKey);
+        if (publicKey != null) {
+            publicKeyCache.put(uid, new CachedKey<>(encodedPublicKey, publicKey));
+        }
+        return publicKey;
+    }
+
+    /**
+     * Remove the decoded public key of a contact. Called when the contact changed his key.
+     *
+     * @param uid
+     */
+    public static void invalidatePublicKey(String uid) {
+        publicKeyCache.remove(uid);
+        sessionKeyCache.remove(uid);
+    }
+
+    /**
+     * Get the decoded private key from the cache or decode and cache it
+     *
+     * @param encodedPrivateKey
+     * @return The decoded private key
+     */
+    private static PrivateKey getPrivateKey(String encodedPrivateKey) {
+        CachedKey<PrivateKey> cached = privateKeyCache;
+        if (cached != null && cached.encoded.equals(encodedPrivateKey)) {
+            return cached.key;
+        }
+
+        PrivateKey privateKey = decodePrivateKey(encodedPrivateKey);
+        if (privateKey != null) {
+            privateKeyCache = new CachedKey<>(encodedPrivateKey, privateKey);
+        }
+        return privateKey;
+    }
+
+    /**
+     * Remove all decoded keys from memory. Called on logout.
+     */
+    public static void clearKeyCache() {
+        privateKeyCache = null;
+        publicKeyCache.evictAll();
+        sessionKeyCache.evictAll();
+        receivedSessionKeyCache.evictAll();
+    }
+
     /**
      * Decode a base64 private key
      *
@@ -83,25 +207,111 @@ public class CryptoManager {
     }
 
     /**
-     * Encrypt a byte[] with a decoded public key
+     * Get the RSA cipher of the current thread. Only used for version 1 messages.
      *
-     * @param data      The plain byte[]
-     * @param publicKey The public key to use for encryption
-     * @return The encrypted data
+     * @return A cipher that has to be initialized before use
      * @throws GeneralSecurityException
      */
-    private static byte[] encrypt(byte[] data, PublicKey publicKey) throws GeneralSecurityException {
-        try {
-            Cipher cipher = Cipher.getInstance(RSA);
-            cipher.init(Cipher.ENCRYPT_MODE, publicKey);
-            return cipher.doFinal(data);
-        } catch (GeneralSecurityException e) {
-            throw new GeneralSecurityException(e.getMessage(), e.getCause());
+    private static Cipher getRsaCipher() throws GeneralSecurityException {
+        Cipher cipher = rsaCipher.get();
+        return cipher != null ? cipher : Cipher.getInstance(RSA);
+    }
+
+    /**
+     * Get the RSA-OAEP cipher of the current thread, used to wrap session keys
+     *
+     * @return A cipher that has to be initialized before use
+     * @throws GeneralSecurityException
+     */
+    private static Cipher getOaepCipher() throws GeneralSecurityException {
+        Cipher cipher = oaepCipher.get();
+        return cipher != null ? cipher : Cipher.getInstance(RSA_OAEP);
+    }
+
+    /**
+     * Get the AES-GCM cipher of the current thread
+     *
+     * @return A cipher that has to be initialized before use
+     * @throws GeneralSecurityException
+     */
+    private static Cipher getAesCipher() throws GeneralSecurityException {
+        Cipher cipher = aesCipher.get();
+        return cipher != null ? cipher : Cipher.getInstance(AES_GCM);
+    }
+
+    /**
+     * Get the session key for a contact or generate and wrap a new one.
+     * A new session key is generated if the contacts public key changed.
+     *
+     * @param contact
+     * @return The session key for the contact
+     * @throws GeneralSecurityException
+     */
+    private static SessionKey getSessionKey(Contact contact) throws GeneralSecurityException {
+        SessionKey sessionKey = sessionKeyCache.get(contact.getUid());
+        if (sessionKey != null && sessionKey.encodedPublicKey.equals(contact.getPublicKey())) {
+            return sessionKey;
         }
+
+        PublicKey publicKey = getPublicKey(contact.getUid(), contact.getPublicKey());
+        KeyGenerator keyGenerator = KeyGenerator.getInstance(AES);
+        keyGenerator.init(AES_KEY_SIZE, secureRandom);
+        SecretKey key = keyGenerator.generateKey();
+        String wrappedKey = Base64.toBase64(wrapKey(key.getEncoded(), publicKey));
+
+        sessionKey = new SessionKey(contact.getPublicKey(), key, wrappedKey);
+        sessionKeyCache.put(contact.getUid(), sessionKey);
+        return sessionKey;
     }
 
     /**
-     * Decrypt a byte[] with a decoded private key
+     * Get the unwrapped session key of a received message from the cache or unwrap and cache it
+     *
+     * @param wrappedKey        The base64 encoded wrapped key
+     * @param encodedPrivateKey The encoded private key
+     * @return The unwrapped session key
+     * @throws GeneralSecurityException
+     */
+    private static SecretKey getReceivedSessionKey(String wrappedKey, String encodedPrivateKey) throws GeneralSecurityException {
+        SecretKey key = receivedSessionKeyCache.get(wrappedKey);
+        if (key == null) {
+            byte[] rawKey = unwrapKey(Base64.toBytes(wrappedKey), getPrivateKey(encodedPrivateKey));
+            key = new SecretKeySpec(rawKey, AES);
+            receivedSessionKeyCache.put(wrappedKey, key);
+        }
+        return key;
+    }
+
+    /**
+     * Wrap a raw session key with RSA-OAEP
+     *
+     * @param rawKey    The encoded session key
+     * @param publicKey The public key of the receiver
+     * @return The wrapped key
+     * @throws GeneralSecurityException
+     */
+    private static byte[] wrapKey(byte[] rawKey, PublicKey publicKey) throws GeneralSecurityException {
+        Cipher cipher = getOaepCipher();
+        cipher.init(Cipher.ENCRYPT_MODE, publicKey, OAEP_PARAMETERS);
+        return cipher.doFinal(rawKey);
+    }
+
+    /**
+     * Unwrap a session key wrapped with RSA-OAEP
+     *
+     * @param wrappedKey The wrapped key
+     * @param privateKey The decoded private key
+     * @return The encoded session key
+     * @throws GeneralSecurityException
+     */
+    private static byte[] unwrapKey(byte[] wrappedKey, PrivateKey privateKey) throws GeneralSecurityException {
+        Cipher cipher = getOaepCipher();
+        cipher.init(Cipher.DECRYPT_MODE, privateKey, OAEP_PARAMETERS);
+        return cipher.doFinal(wrappedKey);
+    }
+
+    /**
+     * Decrypt a version 1 byte[] with a decoded private key
      *
      * @param data       The encrypted byte[]
      * @param privateKey The decoded private key
@@ -110,7 +320,7 @@ public class CryptoManager {
      */
     private static byte[] decrypt(byte[] data, PrivateKey privateKey) throws GeneralSecurityException {
         try {
-            Cipher cipher = Cipher.getInstance(RSA);
+            Cipher cipher = getRsaCipher();
             cipher.init(Cipher.DECRYPT_MODE, privateKey);
             return cipher.doFinal(data);
         } catch (GeneralSecurityException e) {
@@ -119,17 +329,25 @@ public class CryptoManager {
     }
 
     /**
-     * Encrypt and encode a byte[] to a base64 String
+     * Encrypt and encode a byte[] for a contact in a version 2 envelope, using his session key
      *
-     * @param data             The plain byte[]
-     * @param encodedPublicKey The encoded public key
-     * @return The encrypted data as a base64 encoded String
+     * @param data    The plain byte[]
+     * @param contact The receiving contact
+     * @return The envelope as a String
      */
-    public static String encryptAndEncode(byte[] data, String encodedPublicKey) {
+    public static String encryptAndEncode(byte[] data, Contact contact) {
         try {
-            PublicKey publicKey = decodePublicKey(encodedPublicKey);
-            byte[] rawData = encrypt(data, publicKey);
-            return Base64.toBase64(rawData);
+            SessionKey sessionKey = getSessionKey(contact);
+            byte[] iv = new byte[GCM_IV_SIZE];
+            secureRandom.nextBytes(iv);
+
+            Cipher cipher = getAesCipher();
+            cipher.init(Cipher.ENCRYPT_MODE, sessionKey.key, new GCMParameterSpec(GCM_TAG_SIZE, iv));
+            byte[] rawData = cipher.doFinal(data);
+
+            return ENVELOPE_V2 + ENVELOPE_SEPARATOR + sessionKey.wrappedKey
+                    + ENVELOPE_SEPARATOR + Base64.toBase64(iv)
+                    + ENVELOPE_SEPARATOR + Base64.toBase64(rawData);
         } catch (GeneralSecurityException e) {
             return null;
         }
@@ -144,10 +362,84 @@ public class CryptoManager {
      */
     public static byte[] decryptAndDecode(String encodedData, String encodedPrivateKey) {
         try {
-            PrivateKey privateKey = decodePrivateKey(encodedPrivateKey);
+            if (encodedData.startsWith(ENVELOPE_V2 + ENVELOPE_SEPARATOR)) {
+                return decryptEnvelope(encodedData, encodedPrivateKey);
+            }
+
+            PrivateKey privateKey = getPrivateKey(encodedPrivateKey);
             return decrypt(Base64.toBytes(encodedData), privateKey);
-        } catch (GeneralSecurityException e) {
+        } catch (GeneralSecurityException | IllegalArgumentException e) {
             return null;
         }
     }
+
+    /**
+     * Decrypt a version 2 envelope
+     *
+     * @param envelope          The envelope
+     * @param encodedPrivateKey The encoded private key
+     * @return The decrypted data as plain byte[]
+     * @throws GeneralSecurityException
+     */
+    private static byte[] decryptEnvelope(String envelope, String encodedPrivateKey) throws GeneralSecurityException {
+        String[] parts = envelope.split(ENVELOPE_SEPARATOR);
+        if (parts.length != ENVELOPE_V2_PARTS) {
+            throw new GeneralSecurityException("Malformed envelope");
+        }
+
+        SecretKey key = getReceivedSessionKey(parts[1], encodedPrivateKey);
+        Cipher cipher = getAesCipher();
+        cipher.init(Cipher.DECRYPT_MODE, key, new GCMParameterSpec(GCM_TAG_SIZE, Base64.toBytes(parts[2])));
+        return cipher.doFinal(Base64.toBytes(parts[3]));
+    }
+
+    /**
+     * A decoded key together with its encoded form
+     *
+     * @param <T> The key type
+     */
+    private static class CachedKey<T> {
+        final String encoded;
+        final T key;
+
+        CachedKey(String encoded, T key) {
+            this.encoded = encoded;
+            this.key = key;
+        }
+    }
+
+    /**
+     * A AES session key for a contact together with its RSA wrapped form
+     */
+    private static class SessionKey {
+        final String encodedPublicKey;
+        final SecretKey key;
+        final String wrappedKey;
+
+        SessionKey(String encodedPublicKey, SecretKey key, String wrappedKey) {
+            this.encodedPublicKey = encodedPublicKey;
+            this.key = key;
+            this.wrappedKey = wrappedKey;
+        }
+    }
+
+    /**
+     * Holds one {@link Cipher} instance per thread
+     */
+    private static class CipherThreadLocal extends ThreadLocal<Cipher> {
+        private final String transformation;
+
+        CipherThreadLocal(String transformation) {
+            this.transformation = transformation;
+        }
+
+        @Override
+        protected Cipher initialValue() {
+            try {
+                return Cipher.getInstance(transformation);
+            } catch (GeneralSecurityException e) {
+                return null; // Should never happen case
+            }
+        }
+    }
 }
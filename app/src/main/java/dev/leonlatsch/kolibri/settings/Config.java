@@ -16,7 +16,13 @@ public class Config {
     public static final String KEY_BACKEND_HTTP_BASEURL = "kolibri.backend.http.baseurl"; // The base url for the rest api
     public static final String KEY_BACKEND_BROKER_PORT = "kolibri.backend.broker.port"; // The port for the broker connection
     public static final String KEY_BACKEND_BROKER_HOST = "kolibri.backend.broker.host"; // The host for the broker connection
+    public static final String KEY_BACKEND_BROKER_PREFETCH = "kolibri.backend.broker.prefetch"; // Max unacknowledged deliveries
+    public static final String KEY_BACKEND_BROKER_BATCH_SIZE = "kolibri.backend.broker.batch_size"; // Deliveries persisted in one transaction
+    public static final String KEY_BACKEND_BROKER_FLUSH_INTERVAL = "kolibri.backend.broker.flush_interval"; // Max ms before a batch is flushed
+    public static final String KEY_BACKEND_BROKER_PUBLISH_EXCHANGE = "kolibri.backend.broker.publish_exchange"; // Send over the broker if set
+    public static final String KEY_BACKEND_CONTACT_SYNC_PARALLELISM = "kolibri.backend.contact_sync.parallelism"; // Max parallel requests per contact
     public static final String KEY_APP_SEND_WITH_ENTER = "kolibri.app.send_with_enter"; // Send a message with enter
+    public static final String KEY_APP_MESSAGE_ID_BLOOM_FILTER = "kolibri.app.message_id_bloom_filter"; // Check received mids in memory first
     private static final String FILE_NAME = "dev.leonlatsch.kolibri_preferences"; // Filename will be kolibri-preferences.xml
 
     public static final String ENABLE_REGISTRATION = "enableRegistration";
@@ -19,14 +19,26 @@ import androidx.fragment.app.Fragment;
 
 import com.google.android.material.navigation.NavigationView;
 
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
 import dev.leonlatsch.kolibri.R;
 import dev.leonlatsch.kolibri.broker.MessageConsumer;
 import dev.leonlatsch.kolibri.broker.queue.MessageQueue;
+import dev.leonlatsch.kolibri.database.AvatarStore;
+import dev.leonlatsch.kolibri.database.DatabaseWriter;
 import dev.leonlatsch.kolibri.database.EntityChangedListener;
 import dev.leonlatsch.kolibri.database.interfaces.ChatInterface;
 import dev.leonlatsch.kolibri.database.interfaces.ContactInterface;
+import dev.leonlatsch.kolibri.database.interfaces.KeyPairInterface;
 import dev.leonlatsch.kolibri.database.interfaces.UserInterface;
 import dev.leonlatsch.kolibri.database.model.User;
+import dev.leonlatsch.kolibri.security.CryptoManager;
 import dev.leonlatsch.kolibri.ui.chatlist.ChatFragment;
 import dev.leonlatsch.kolibri.ui.profile.ProfileFragment;
 import dev.leonlatsch.kolibri.ui.settings.SettingsFragment;
@@ -41,6 +53,10 @@ import dev.leonlatsch.kolibri.util.ImageUtil;
  */
 public class MainActivity extends AppCompatActivity implements NavigationView.OnNavigationItemSelectedListener, EntityChangedListener<User> {
 
+    private static final Logger log = LoggerFactory.getLogger(MainActivity.class);
+
+    private static final String LOGOUT_THREAD_NAME = "LOGOUT-THREAD";
+
     private DrawerLayout drawerLayout;
     private NavigationView navigationView;
     private View progressOverlay;
@@ -49,6 +65,7 @@ public class MainActivity extends AppCompatActivity implements NavigationView.On
     private UserInterface userInterface;
     private ContactInterface contactInterface;
     private ChatInterface chatInterface;
+    private DatabaseWriter databaseWriter;
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -62,6 +79,7 @@ public class MainActivity extends AppCompatActivity implements NavigationView.On
         userInterface.addEntityChangedListener(this);
         contactInterface = ContactInterface.getInstance();
         chatInterface = ChatInterface.getInstance();
+        databaseWriter = DatabaseWriter.getInstance();
 
         MessageConsumer.start(this);
         MessageQueue.start();
@@ -149,8 +167,8 @@ public class MainActivity extends AppCompatActivity implements NavigationView.On
         TextView username = header.findViewById(R.id.nav_username);
         TextView email = header.findViewById(R.id.nav_email);
 
-        if (user.getProfilePicTn() != null) {
-            profilePic.setImageBitmap(ImageUtil.createBitmap(user.getProfilePicTn()));
+        if (user.getProfilePicHash() != null) {
+            profilePic.setImageBitmap(ImageUtil.loadAvatar(user.getProfilePicHash()));
         }
         username.setText(user.getUsername());
         email.setText(user.getEmail());
@@ -184,15 +202,37 @@ public class MainActivity extends AppCompatActivity implements NavigationView.On
     }
 
     private void doLogout() {
-        User user = userInterface.getUser();
-        if (user != null) {
-            userInterface.delete(user);
-        }
-        contactInterface.deleteAll();
-        chatInterface.deleteAll();
-        MessageConsumer.stop();
-        startActivity(new Intent(getApplicationContext(), LoginActivity.class));
-        finish();
+        MessageConsumer.stop(); // Before deleting, so no message is saved or sent for the old user afterwards
+        MessageQueue.stop();
+
+        List<Future<Void>> deletes = new ArrayList<>();
+        deletes.add(databaseWriter.submit(() -> {
+            User user = userInterface.getUser();
+            if (user != null) {
+                userInterface.delete(user);
+            }
+            contactInterface.deleteAll();
+        }));
+        deletes.add(chatInterface.deleteAll());
+        deletes.add(AvatarStore.getInstance().clear());
+        KeyPairInterface.getInstance().clearCache();
+        CryptoManager.clearKeyCache();
+
+        new Thread(() -> { // Deleting all messages can take a while
+            for (Future<Void> delete : deletes) {
+                try {
+                    delete.get();
+                } catch (ExecutionException e) {
+                    log.error("Deleting local data failed: " + e.getCause());
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+            runOnUiThread(() -> {
+                startActivity(new Intent(getApplicationContext(), LoginActivity.class));
+                finish();
+            });
+        }, LOGOUT_THREAD_NAME).start();
     }
 
     /**
@@ -203,7 +243,7 @@ public class MainActivity extends AppCompatActivity implements NavigationView.On
     @Override
     public void entityChanged(User newEntity) {
         if (newEntity != null) {
-            mapUserToDrawer(newEntity);
+            runOnUiThread(() -> mapUserToDrawer(newEntity)); // Saved on the DatabaseWriter
         }
     }
 
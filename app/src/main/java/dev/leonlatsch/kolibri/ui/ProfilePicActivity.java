@@ -74,7 +74,7 @@ public class ProfilePicActivity extends AppCompatActivity {
                 if (response.isSuccessful()) {
                     String profilePic = response.body().getContent();
                     if (profilePic != null) {
-                        imageView.setImageBitmap(ImageUtil.createBitmap(profilePic));
+                        imageView.setImageBitmap(ImageUtil.createUncachedBitmap(profilePic));
                     } else {
                         imageView.setImageDrawable(ImageUtil.getDefaultProfilePic(context));
                     }
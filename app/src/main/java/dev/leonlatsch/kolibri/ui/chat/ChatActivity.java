@@ -11,40 +11,34 @@ import android.widget.ImageButton;
 import android.widget.ImageView;
 import android.widget.TextView;
 
+import androidx.annotation.NonNull;
 import androidx.appcompat.app.AppCompatActivity;
 import androidx.appcompat.widget.Toolbar;
 import androidx.recyclerview.widget.LinearLayoutManager;
 import androidx.recyclerview.widget.RecyclerView;
 
-import java.sql.Timestamp;
 import java.util.ArrayList;
-import java.util.List;
 
 import dev.leonlatsch.kolibri.R;
 import dev.leonlatsch.kolibri.broker.MessageConsumer;
 import dev.leonlatsch.kolibri.broker.MessageRecyclerChangeListener;
-import dev.leonlatsch.kolibri.constants.Formats;
+import dev.leonlatsch.kolibri.broker.queue.MessageQueue;
 import dev.leonlatsch.kolibri.constants.Values;
-import dev.leonlatsch.kolibri.database.DatabaseMapper;
+import dev.leonlatsch.kolibri.database.AvatarStore;
+import dev.leonlatsch.kolibri.database.DatabaseWriter;
 import dev.leonlatsch.kolibri.database.interfaces.ChatInterface;
 import dev.leonlatsch.kolibri.database.interfaces.ContactInterface;
 import dev.leonlatsch.kolibri.database.interfaces.UserInterface;
 import dev.leonlatsch.kolibri.database.model.Chat;
 import dev.leonlatsch.kolibri.database.model.Contact;
+import dev.leonlatsch.kolibri.database.model.DeliveryState;
 import dev.leonlatsch.kolibri.database.model.Message;
 import dev.leonlatsch.kolibri.database.model.MessageType;
-import dev.leonlatsch.kolibri.rest.dto.Container;
-import dev.leonlatsch.kolibri.rest.dto.MessageDTO;
-import dev.leonlatsch.kolibri.rest.service.ChatService;
-import dev.leonlatsch.kolibri.rest.service.RestServiceFactory;
-import dev.leonlatsch.kolibri.security.CryptoManager;
 import dev.leonlatsch.kolibri.settings.Config;
 import dev.leonlatsch.kolibri.ui.contactpage.ContactActivity;
+import dev.leonlatsch.kolibri.util.AvatarLoader;
 import dev.leonlatsch.kolibri.util.Generator;
 import dev.leonlatsch.kolibri.util.ImageUtil;
-import retrofit2.Call;
-import retrofit2.Callback;
-import retrofit2.Response;
 
 /**
  * The Chat Activity which mainly displays messages and sends messages to the api
@@ -54,6 +48,10 @@ import retrofit2.Response;
  */
 public class ChatActivity extends AppCompatActivity implements MessageRecyclerChangeListener {
 
+    private static final int PAGE_SIZE = 50;
+    private static final int MAX_LOADED_MESSAGES = PAGE_SIZE * 4; // Older or newer pages get evicted beyond this
+    private static final int PREFETCH_DISTANCE = 10; // Load the next page this many messages before the end
+
     /**
      * Indicates of a ChatActivity is active
      */
@@ -67,17 +65,19 @@ public class ChatActivity extends AppCompatActivity implements MessageRecyclerCh
     private Chat chat;
     private Contact contact;
     private boolean isTemp; // Indicates if this is called from the chat list or the user search
+    private String tempProfilePic; // The thumbnail of a temp contact
 
     private EditText messageEditText;
     private RecyclerView messageRecycler;
 
     private MessageListAdapter messageListAdapter;
+    private LinearLayoutManager layoutManager;
+    private MessagePager messagePager;
 
     private ContactInterface contactInterface;
     private UserInterface userInterface;
     private ChatInterface chatInterface;
-
-    private ChatService chatService;
+    private DatabaseWriter databaseWriter;
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -93,21 +93,27 @@ public class ChatActivity extends AppCompatActivity implements MessageRecyclerCh
         contactInterface = ContactInterface.getInstance();
         userInterface = UserInterface.getInstance();
         chatInterface = ChatInterface.getInstance();
-        chatService = RestServiceFactory.getChatService();
+        databaseWriter = DatabaseWriter.getInstance();
 
         initData();
         SharedPreferences preferences = Config.getSharedPreferences(this);
         messageRecycler = findViewById(R.id.chat_recycler_view);
 
-        List<Message> messageList;
+        messageListAdapter = new MessageListAdapter(this, new ArrayList<>());
+        layoutManager = new LinearLayoutManager(this);
+        messageRecycler.setLayoutManager(layoutManager);
+        messageRecycler.setAdapter(messageListAdapter);
+
+        messagePager = new MessagePager(chat.getCid(), PAGE_SIZE);
         if (!isTemp) {
-            messageList = chatInterface.getMessagesForChat(chat.getCid());
-        } else {
-            messageList = new ArrayList<>();
+            loadNewestPage();
         }
-        messageListAdapter = new MessageListAdapter(this, messageList);
-        messageRecycler.setLayoutManager(new LinearLayoutManager(this));
-        messageRecycler.setAdapter(messageListAdapter);
+        messageRecycler.addOnScrollListener(new RecyclerView.OnScrollListener() {
+            @Override
+            public void onScrolled(@NonNull RecyclerView recyclerView, int dx, int dy) {
+                onMessagesScrolled();
+            }
+        });
 
         messageEditText = findViewById(R.id.chat_edit_text);
         TextView usernameTextView = findViewById(R.id.chat_username_textview);
@@ -140,18 +146,14 @@ public class ChatActivity extends AppCompatActivity implements MessageRecyclerCh
         Contact contact = contactInterface.getContact(chat.getUid());
         if (contact != null) {
             usernameTextView.setText(contact.getUsername());
-            if (this.contact.getProfilePicTn() != null) {
-                profilePicImageView.setImageBitmap(ImageUtil.createBitmap(contact.getProfilePicTn()));
+            if (this.contact.getProfilePicHash() != null) {
+                AvatarLoader.getInstance().load(profilePicImageView, contact.getProfilePicHash(), ImageUtil.getDefaultProfilePic(this));
             }
         } else {
             String username = (String) getIntent().getExtras().get(Values.INTENT_KEY_CHAT_USERNAME);
             String profilePic = (String) getIntent().getExtras().get(Values.INTENT_KEY_CHAT_PROFILE_PIC);
             usernameTextView.setText(username);
-            if (profilePic != null) {
-                profilePicImageView.setImageBitmap(ImageUtil.createBitmap(profilePic));
-            } else {
-                profilePicImageView.setImageDrawable(ImageUtil.getDefaultProfilePic(this));
-            }
+            AvatarLoader.getInstance().loadBase64(profilePicImageView, profilePic, ImageUtil.getDefaultProfilePic(this));
         }
 
         messageRecycler.scrollToPosition(messageListAdapter.getLastPosition());
@@ -164,42 +166,35 @@ public class ChatActivity extends AppCompatActivity implements MessageRecyclerCh
         if (!messageEditText.getText().toString().isEmpty()) {
             Message message = constructMessage();
 
-            if (isTemp) { // If this is the first message save the temo chat and contact
-                chat.setLastTimestamp(message.getTimestamp());
-                chat.setLastMessage(message.getContent());
-                chatInterface.saveChat(chat);
-                contactInterface.save(contact);
-                isTemp = false;
-            }
-
+            boolean saveTemp = isTemp; // If this is the first message save the temp chat and contact
+            isTemp = false;
             chat.setLastMessage(message.getContent());
             chat.setLastTimestamp(message.getTimestamp());
-            chatInterface.updateChat(chat);
-            MessageConsumer.notifyChatListChangedFromExternal(chat);
+            message.setDeliveryState(DeliveryState.PENDING);
+
+            boolean reload = messagePager.hasNewer();
+            databaseWriter.submit(() -> {
+                if (saveTemp) {
+                    contact.setProfilePicHash(AvatarStore.getInstance().put(tempProfilePic));
+                    chatInterface.saveChat(chat);
+                    contactInterface.save(contact);
+                }
+                chatInterface.updateChat(chat);
+                chatInterface.saveMessage(message);
+            }, () -> {
+                MessageConsumer.notifyChatListChangedFromExternal(chat);
+                MessageQueue.enqueue(message); // The outbox sends it and updates the status
+                if (reload) {
+                    runOnUiThread(this::loadNewestPage); // Jump back to the newest messages, they include the new one
+                }
+            });
 
             // Clean up view
-            messageListAdapter.add(message);
             messageEditText.setText(Values.EMPTY);
-            messageRecycler.scrollToPosition(messageListAdapter.getLastPosition());
             messageEditText.requestFocus();
-
-            MessageDTO encryptedMessage = DatabaseMapper.getInstance().toDto(message);
-            encryptedMessage.setContent(CryptoManager.encryptAndEncode(encryptedMessage.getContent().getBytes(), contact.getPublicKey()));
-            Call<Container<String>> call = chatService.send(userInterface.getAccessToken(), encryptedMessage);
-            call.enqueue(new Callback<Container<String>>() {
-                @Override
-                public void onResponse(Call<Container<String>> call, Response<Container<String>> response) {
-                    message.setSent(true);
-                    chatInterface.saveMessage(message);
-                    messageListAdapter.updateMessageStatus(message);
-                }
-
-                @Override
-                public void onFailure(Call<Container<String>> call, Throwable t) {
-                    message.setSent(false);
-                    chatInterface.saveMessage(message);
-                }
-            });
+            if (!reload) {
+                addNewMessage(message);
+            }
         }
     }
 
@@ -214,14 +209,68 @@ public class ChatActivity extends AppCompatActivity implements MessageRecyclerCh
             new Handler(getApplicationContext().getMainLooper()).post(() -> {
                 if (messageListAdapter.isMessagePresent(message)) {
                     messageListAdapter.updateMessageStatus(message);
-                } else {
-                    messageListAdapter.add(message);
-                    messageRecycler.scrollToPosition(messageListAdapter.getLastPosition());
+                } else if (!messagePager.hasNewer()) { // Otherwise it gets loaded when scrolling down
+                    addNewMessage(message);
                 }
             }); // Invoke on main thread
         }
     }
 
+    /**
+     * Replace the loaded messages with the newest page and scroll to the bottom
+     */
+    private void loadNewestPage() {
+        messagePager.loadNewest(page -> {
+            messageListAdapter.removeNewest(messageListAdapter.getItemCount());
+            messageListAdapter.addNewer(page);
+            messageRecycler.scrollToPosition(messageListAdapter.getLastPosition());
+        });
+    }
+
+    /**
+     * Add a new message at the bottom and evict the oldest messages if too many are loaded
+     *
+     * @param message
+     */
+    private void addNewMessage(Message message) {
+        messageListAdapter.add(message);
+        evictOldest();
+        messageRecycler.scrollToPosition(messageListAdapter.getLastPosition());
+    }
+
+    /**
+     * Load older or newer pages when scrolled near the top or bottom
+     */
+    private void onMessagesScrolled() {
+        if (messageListAdapter.getItemCount() == 0) {
+            return;
+        }
+
+        if (layoutManager.findFirstVisibleItemPosition() <= PREFETCH_DISTANCE) {
+            messagePager.loadOlder(messageListAdapter::getOldest, page -> {
+                messageListAdapter.addOlder(page);
+                int overflow = messageListAdapter.getItemCount() - MAX_LOADED_MESSAGES;
+                if (overflow > 0) {
+                    messageListAdapter.removeNewest(overflow);
+                    messagePager.newerEvicted();
+                }
+            });
+        } else if (layoutManager.findLastVisibleItemPosition() >= messageListAdapter.getLastPosition() - PREFETCH_DISTANCE) {
+            messagePager.loadNewer(messageListAdapter::getNewest, page -> {
+                messageListAdapter.addNewer(page);
+                evictOldest();
+            });
+        }
+    }
+
+    private void evictOldest() {
+        int overflow = messageListAdapter.getItemCount() - MAX_LOADED_MESSAGES;
+        if (overflow > 0) {
+            messageListAdapter.removeOldest(overflow);
+            messagePager.olderEvicted();
+        }
+    }
+
     /**
      * Construct a message before sending it
      *
@@ -236,7 +285,7 @@ public class ChatActivity extends AppCompatActivity implements MessageRecyclerCh
         message.setTo(contact.getUid());
         message.setMid(Generator.genUUid());
         message.setType(MessageType.TEXT);
-        message.setTimestamp(Formats.DATE_FORMAT.format(new Timestamp(System.currentTimeMillis())));
+        message.setTimestamp(System.currentTimeMillis());
         message.setContent(messageText);
         return message;
     }
@@ -263,9 +312,10 @@ public class ChatActivity extends AppCompatActivity implements MessageRecyclerCh
             this.contact = new Contact();
             this.contact.setUid(uid);
             this.contact.setUsername(username);
-            this.contact.setProfilePicTn(profilePic);
+            this.contact.setProfilePicHash(AvatarStore.hash(profilePic)); // Stored when the contact is saved
+            tempProfilePic = profilePic;
             this.contact.setPublicKey(publicKey);
-            chat = new Chat(Generator.genUUid(), this.contact.getUid(), 0, null, null);
+            chat = new Chat(Generator.genUUid(), this.contact.getUid(), 0, null, 0);
             isTemp = true;
         }
     }
@@ -292,4 +342,10 @@ public class ChatActivity extends AppCompatActivity implements MessageRecyclerCh
         super.onStop();
         isActive = false;
     }
+
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        messagePager.shutdown();
+    }
 }
@@ -15,6 +15,7 @@ import java.util.List;
 import dev.leonlatsch.kolibri.R;
 import dev.leonlatsch.kolibri.database.interfaces.UserInterface;
 import dev.leonlatsch.kolibri.database.model.Message;
+import dev.leonlatsch.kolibri.util.TimeUtil;
 
 /**
  * Adapter for displaying the ChatActivity's Message Recycler
@@ -115,6 +116,56 @@ public class MessageListAdapter extends RecyclerView.Adapter {
         return mMessageList.size() - 1;
     }
 
+    /**
+     * Add a page of older messages at the top
+     *
+     * @param messages The messages in ascending order
+     */
+    public void addOlder(List<Message> messages) {
+        mMessageList.addAll(0, messages);
+        notifyItemRangeInserted(0, messages.size());
+    }
+
+    /**
+     * Add a page of newer messages at the bottom
+     *
+     * @param messages The messages in ascending order
+     */
+    public void addNewer(List<Message> messages) {
+        int start = mMessageList.size();
+        mMessageList.addAll(messages);
+        notifyItemRangeInserted(start, messages.size());
+    }
+
+    /**
+     * Remove the oldest messages
+     *
+     * @param count
+     */
+    public void removeOldest(int count) {
+        mMessageList.subList(0, count).clear();
+        notifyItemRangeRemoved(0, count);
+    }
+
+    /**
+     * Remove the newest messages
+     *
+     * @param count
+     */
+    public void removeNewest(int count) {
+        int start = mMessageList.size() - count;
+        mMessageList.subList(start, mMessageList.size()).clear();
+        notifyItemRangeRemoved(start, count);
+    }
+
+    public Message getOldest() {
+        return mMessageList.isEmpty() ? null : mMessageList.get(0);
+    }
+
+    public Message getNewest() {
+        return mMessageList.isEmpty() ? null : mMessageList.get(mMessageList.size() - 1);
+    }
+
     private class SentMessageHolder extends RecyclerView.ViewHolder {
 
         TextView messageBody, messageTimestamp;
@@ -130,7 +181,7 @@ public class MessageListAdapter extends RecyclerView.Adapter {
 
         void bind(Message message) {
             messageBody.setText(message.getContent());
-            messageTimestamp.setText(message.getTimestamp().substring(11, 16)); // Hard code for the moment
+            messageTimestamp.setText(TimeUtil.formatTime(message.getTimestamp()));
             if (message.isSent()) {
                 sentIndicator.setImageDrawable(mContext.getDrawable(R.drawable.ic_check));
             } else {
@@ -152,7 +203,7 @@ public class MessageListAdapter extends RecyclerView.Adapter {
 
         void bind(Message message) {
             messageBody.setText(message.getContent());
-            messageTimestamp.setText(message.getTimestamp().substring(11, 16)); // Hard code for the moment
+            messageTimestamp.setText(TimeUtil.formatTime(message.getTimestamp()));
         }
     }
 }
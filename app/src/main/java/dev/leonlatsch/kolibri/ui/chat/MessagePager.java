@@ -0,0 +1,198 @@
+package dev.leonlatsch.kolibri.ui.chat;
+
+import android.os.Handler;
+import android.os.Looper;
+
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import dev.leonlatsch.kolibri.database.interfaces.ChatInterface;
+import dev.leonlatsch.kolibri.database.model.Message;
+
+/**
+ * Loads the messages of a chat in pages on a background thread.
+ * <p>
+ * Pages are found by the (timestamp, id) key of the first or last loaded message, not by a offset,
+ * so loading a page costs the same regardless of the history length.
+ * Results are delivered on the main thread. Only one page is loaded at a time; a request made while a page is loading
+ * replaces any earlier waiting request and runs once the page is delivered. The anchor of a page is read when its
+ * load starts, so a waiting request continues from the page before it.
+ *
+ * @author Leon Latsch
+ * @since 1.0.0
+ */
+public class MessagePager {
+
+    private static final String THREAD_NAME = "MESSAGE-PAGER-THREAD";
+
+    private final String cid;
+    private final int pageSize;
+    private final ChatInterface chatInterface;
+    private final ExecutorService executor;
+    private final Handler mainHandler;
+
+    // Only accessed on the main thread
+    private boolean loading = false;
+    private Runnable pending;
+    private boolean hasOlder = true;
+    private boolean hasNewer = false;
+
+    /**
+     * @param cid      The chat to load the messages from
+     * @param pageSize The amount of messages per page
+     */
+    public MessagePager(String cid, int pageSize) {
+        this.cid = cid;
+        this.pageSize = pageSize;
+        this.chatInterface = ChatInterface.getInstance();
+        this.executor = Executors.newSingleThreadExecutor(runnable -> new Thread(runnable, THREAD_NAME));
+        this.mainHandler = new Handler(Looper.getMainLooper());
+    }
+
+    /**
+     * Load the newest page
+     *
+     * @param callback
+     */
+    public void loadNewest(PageCallback callback) {
+        request(() -> load(() -> chatInterface.getNewestMessages(cid, pageSize), page -> {
+            hasOlder = page.size() == pageSize;
+            hasNewer = false;
+            callback.onPage(page);
+        }));
+    }
+
+    /**
+     * Load the page before the oldest loaded message
+     *
+     * @param oldest   Provides the oldest loaded message
+     * @param callback
+     */
+    public void loadOlder(Anchor oldest, PageCallback callback) {
+        request(() -> {
+            Message anchor = oldest.get();
+            if (!hasOlder || anchor == null) {
+                return;
+            }
+
+            load(() -> chatInterface.getMessagesBefore(cid, anchor, pageSize), page -> {
+                hasOlder = page.size() == pageSize;
+                callback.onPage(page);
+            });
+        });
+    }
+
+    /**
+     * Load the page after the newest loaded message. Only needed if newer pages were evicted.
+     *
+     * @param newest   Provides the newest loaded message
+     * @param callback
+     */
+    public void loadNewer(Anchor newest, PageCallback callback) {
+        request(() -> {
+            Message anchor = newest.get();
+            if (!hasNewer || anchor == null) {
+                return;
+            }
+
+            load(() -> chatInterface.getMessagesAfter(cid, anchor, pageSize), page -> {
+                hasNewer = page.size() == pageSize;
+                callback.onPage(page);
+            });
+        });
+    }
+
+    /**
+     * Called when the oldest messages were evicted
+     */
+    public void olderEvicted() {
+        hasOlder = true;
+    }
+
+    /**
+     * Called when the newest messages were evicted
+     */
+    public void newerEvicted() {
+        hasNewer = true;
+    }
+
+    /**
+     * @return If newer messages exist that are not loaded
+     */
+    public boolean hasNewer() {
+        return hasNewer;
+    }
+
+    public void shutdown() {
+        pending = null;
+        executor.shutdownNow();
+    }
+
+    /**
+     * Run a request now or after the page that is loading
+     *
+     * @param request
+     */
+    private void request(Runnable request) {
+        if (loading) {
+            pending = request; // Only the latest request matters
+        } else {
+            request.run();
+        }
+    }
+
+    private void load(Query query, PageCallback callback) {
+        if (executor.isShutdown()) {
+            return;
+        }
+
+        loading = true;
+        executor.execute(() -> {
+            List<Message> page = query.run();
+            mainHandler.post(() -> {
+                loading = false;
+                if (executor.isShutdown()) {
+                    return;
+                }
+
+                callback.onPage(page);
+                Runnable next = pending;
+                pending = null;
+                if (next != null) {
+                    next.run();
+                }
+            });
+        });
+    }
+
+    /**
+     * Callback for a loaded page
+     */
+    public interface PageCallback {
+
+        /**
+         * Called on the main thread
+         *
+         * @param page The messages in ascending order
+         */
+        void onPage(List<Message> page);
+    }
+
+    /**
+     * Provides the loaded message a page starts from
+     */
+    public interface Anchor {
+
+        /**
+         * Called on the main thread when the page starts loading
+         *
+         * @return The message or null if none is loaded
+         */
+        Message get();
+    }
+
+    private interface Query {
+        List<Message> run();
+    }
+}
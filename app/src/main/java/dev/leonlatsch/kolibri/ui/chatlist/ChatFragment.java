@@ -28,9 +28,12 @@ import dev.leonlatsch.kolibri.R;
 import dev.leonlatsch.kolibri.broker.ChatListChangeListener;
 import dev.leonlatsch.kolibri.broker.MessageConsumer;
 import dev.leonlatsch.kolibri.constants.Values;
+import dev.leonlatsch.kolibri.database.DatabaseWriter;
+import dev.leonlatsch.kolibri.database.EntityChangedListener;
 import dev.leonlatsch.kolibri.database.interfaces.ChatInterface;
 import dev.leonlatsch.kolibri.database.interfaces.ContactInterface;
 import dev.leonlatsch.kolibri.database.model.Chat;
+import dev.leonlatsch.kolibri.database.model.Contact;
 import dev.leonlatsch.kolibri.ui.MainActivity;
 import dev.leonlatsch.kolibri.ui.usersearch.UserSearchActivity;
 import dev.leonlatsch.kolibri.ui.chat.ChatActivity;
@@ -52,6 +55,9 @@ public class ChatFragment extends Fragment implements ChatListChangeListener {
 
     private ChatInterface chatInterface;
     private ContactInterface contactInterface;
+    private DatabaseWriter databaseWriter;
+    private EntityChangedListener<Contact> contactChangedListener = contact -> new Handler(parent.getApplicationContext().getMainLooper())
+            .post(() -> chatListAdapter.notifyDataSetChanged()); // Rebind the cached contacts on the main thread
     private AdapterView.OnItemClickListener itemClickListener = (parent, view, position, id) -> {
         Object raw = listView.getItemAtPosition(position);
         if (raw instanceof Chat) {
@@ -61,7 +67,7 @@ public class ChatFragment extends Fragment implements ChatListChangeListener {
             startActivity(intent);
             if (chat.getUnreadMessages() > 0) {
                 chat.setUnreadMessages(0);
-                chatInterface.updateChat(chat);
+                databaseWriter.submit(() -> chatInterface.updateChat(chat));
                 chatListAdapter.chatChanged(chat);
             }
         }
@@ -75,7 +81,9 @@ public class ChatFragment extends Fragment implements ChatListChangeListener {
 
         chatInterface = ChatInterface.getInstance();
         contactInterface = ContactInterface.getInstance();
+        databaseWriter = DatabaseWriter.getInstance();
         MessageConsumer.setChatListChangeListener(this);
+        contactInterface.addEntityChangedListener(contactChangedListener);
 
         listView = view.findViewById(R.id.fragment_chat_list_view);
         hintTextView = view.findViewById(R.id.fragment_chat_hint);
@@ -83,7 +91,7 @@ public class ChatFragment extends Fragment implements ChatListChangeListener {
         listView.setChoiceMode(ListView.CHOICE_MODE_MULTIPLE_MODAL);
         listView.setMultiChoiceModeListener(new MultiSelectHandler());
 
-        chatList = chatInterface.getALl();
+        chatList = chatInterface.getAllByRecency();
         setChatListVisible(!chatList.isEmpty());
 
         chatListAdapter = new ChatListAdapter(parent, chatList);
@@ -96,6 +104,12 @@ public class ChatFragment extends Fragment implements ChatListChangeListener {
         return view;
     }
 
+    @Override
+    public void onDestroyView() {
+        super.onDestroyView();
+        contactInterface.removeEntityChangedListener(contactChangedListener);
+    }
+
     private void newChat() {
         Intent intent = new Intent(parent.getApplicationContext(), UserSearchActivity.class);
         startActivity(intent);
@@ -159,8 +173,11 @@ public class ChatFragment extends Fragment implements ChatListChangeListener {
                 DialogInterface.OnClickListener onClickListener = (dialog, which) -> {
                     if (which == DialogInterface.BUTTON_POSITIVE) {
                         for (int i : chatListAdapter.getSelectedItems()) {
-                            contactInterface.delete(chatListAdapter.getItem(i).getUid());
-                            chatInterface.deleteChat(chatListAdapter.getItem(i).getCid());
+                            Chat chat = chatListAdapter.getItem(i);
+                            databaseWriter.submit(() -> {
+                                contactInterface.delete(chat.getUid());
+                                chatInterface.deleteChat(chat.getCid()); // Runs in the same write
+                            });
                         }
                         chatListAdapter.deleteSelectedItems();
 
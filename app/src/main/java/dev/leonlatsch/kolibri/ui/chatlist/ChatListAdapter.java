@@ -12,20 +12,20 @@ import android.widget.TextView;
 
 import androidx.annotation.NonNull;
 
-import java.text.ParseException;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
-import java.util.Date;
 import java.util.List;
 
 import dev.leonlatsch.kolibri.R;
-import dev.leonlatsch.kolibri.constants.Formats;
 import dev.leonlatsch.kolibri.constants.Values;
+import dev.leonlatsch.kolibri.database.interfaces.ChatInterface;
 import dev.leonlatsch.kolibri.database.interfaces.ContactInterface;
 import dev.leonlatsch.kolibri.database.model.Chat;
 import dev.leonlatsch.kolibri.database.model.Contact;
+import dev.leonlatsch.kolibri.util.AvatarLoader;
 import dev.leonlatsch.kolibri.util.ImageUtil;
+import dev.leonlatsch.kolibri.util.TimeUtil;
 
 /**
  * This Adapter is used to display the chat list in the {@link ChatFragment}
@@ -38,26 +38,23 @@ public class ChatListAdapter extends ArrayAdapter<Chat> {
     /**
      * Comparator to sort the chats after teh last received message
      */
-    private static Comparator<Chat> chatComparator = (obj1, obj2) -> {
-        try {
-            Date obj1Date = Formats.DATE_FORMAT.parse(obj1.getLastTimestamp());
-            Date obj2Date = Formats.DATE_FORMAT.parse(obj2.getLastTimestamp());
-            return obj2Date.compareTo(obj1Date);
-        } catch (ParseException e) {
-            return 0;
-        }
-    };
+    private static Comparator<Chat> chatComparator = (obj1, obj2) -> Long.compare(obj2.getLastTimestamp(), obj1.getLastTimestamp());
     private List<Chat> dataset;
     private Context mContext;
     private ContactInterface contactInterface;
+    private AvatarLoader avatarLoader;
     private SparseBooleanArray selectedItems;
 
+    /**
+     * @param context
+     * @param contactList The chats sorted by {@link ChatInterface#getAllByRecency()}
+     */
     public ChatListAdapter(@NonNull Context context, List<Chat> contactList) {
         super(context, 0, contactList);
-        Collections.sort(contactList, chatComparator);
         this.dataset = contactList;
         this.mContext = context;
         this.contactInterface = ContactInterface.getInstance();
+        this.avatarLoader = AvatarLoader.getInstance();
         selectedItems = new SparseBooleanArray();
     }
 
@@ -76,25 +73,30 @@ public class ChatListAdapter extends ArrayAdapter<Chat> {
         return false;
     }
 
+    /**
+     * Replace a chat and move it to its sorted position. The rest of the list stays sorted.
+     *
+     * @param chat
+     */
     public void chatChanged(Chat chat) {
         for (int i = 0; i < dataset.size(); i++) {
             if (dataset.get(i).getCid().equals(chat.getCid())) {
-                dataset.set(i, chat);
+                dataset.remove(i);
+                dataset.add(sortedPosition(chat), chat);
+                break;
             }
         }
-        Collections.sort(dataset, chatComparator);
         notifyDataSetChanged();
     }
 
     /**
-     * Add a chat and sort the list afterwords
+     * Insert a chat at its sorted position
      *
      * @param chat
      */
     @Override
     public void add(Chat chat) {
-        super.add(chat);
-        Collections.sort(dataset, chatComparator);
+        insert(chat, sortedPosition(chat));
     }
 
     @Override
@@ -121,15 +123,11 @@ public class ChatListAdapter extends ArrayAdapter<Chat> {
             return null;
         }
 
-        if (contact.getProfilePicTn() != null) {
-            viewHolder.imageView.setImageBitmap(ImageUtil.createBitmap(contact.getProfilePicTn()));
-        } else {
-            viewHolder.imageView.setImageDrawable(ImageUtil.getDefaultProfilePicTn(mContext));
-        }
+        avatarLoader.load(viewHolder.imageView, contact.getProfilePicHash(), ImageUtil.getDefaultProfilePicTn(mContext));
 
         viewHolder.usernameTextView.setText(contact.getUsername());
         viewHolder.lastMessageTextView.setText(chat.getLastMessage());
-        viewHolder.lastDateTextView.setText(chat.getLastTimestamp().substring(11, 16));
+        viewHolder.lastDateTextView.setText(TimeUtil.formatTime(chat.getLastTimestamp()));
 
         if (chat.getUnreadMessages() > 0) {
             viewHolder.unreadMessagesTextView.setVisibility(View.VISIBLE);
@@ -148,6 +146,11 @@ public class ChatListAdapter extends ArrayAdapter<Chat> {
         return convertView;
     }
 
+    private int sortedPosition(Chat chat) {
+        int index = Collections.binarySearch(dataset, chat, chatComparator);
+        return index < 0 ? -index - 1 : index;
+    }
+
     public void deleteSelectedItems() {
         List<Chat> selectedChats = new ArrayList<>();
         for (int i = 0; i < dataset.size(); i++) {
@@ -42,9 +42,9 @@ public class ContactActivity extends AppCompatActivity {
 
         if (contact != null) {
             usernameTextView.setText(contact.getUsername());
-            String profilePicTn = contact.getProfilePicTn();
-            if (profilePicTn != null) {
-                profilePicImageView.setImageBitmap(ImageUtil.createBitmap(profilePicTn));
+            String profilePicHash = contact.getProfilePicHash();
+            if (profilePicHash != null) {
+                profilePicImageView.setImageBitmap(ImageUtil.loadAvatar(profilePicHash));
             }
 
             profilePicImageView.setOnClickListener(v -> showProfilePic(contact.getUid(), contact.getUsername()));
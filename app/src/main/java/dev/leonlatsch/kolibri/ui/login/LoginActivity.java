@@ -20,6 +20,7 @@ import dev.leonlatsch.kolibri.boot.BootActivity;
 import dev.leonlatsch.kolibri.constants.Regex;
 import dev.leonlatsch.kolibri.constants.Responses;
 import dev.leonlatsch.kolibri.constants.Values;
+import dev.leonlatsch.kolibri.database.DatabaseWriter;
 import dev.leonlatsch.kolibri.database.interfaces.KeyPairInterface;
 import dev.leonlatsch.kolibri.database.interfaces.UserInterface;
 import dev.leonlatsch.kolibri.database.model.KeyPair;
@@ -57,6 +58,7 @@ public class LoginActivity extends AppCompatActivity {
     private AuthService authService;
     private UserInterface userInterface;
     private KeyPairInterface keyPairInterface;
+    private DatabaseWriter databaseWriter;
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -67,6 +69,7 @@ public class LoginActivity extends AppCompatActivity {
         authService = RestServiceFactory.getAuthService();
         userInterface = UserInterface.getInstance();
         keyPairInterface = KeyPairInterface.getInstance();
+        databaseWriter = DatabaseWriter.getInstance();
 
         usernameEditText = findViewById(R.id.loginUsernameEditText);
         passwordEditText = findViewById(R.id.loginPasswordEditText);
@@ -161,13 +164,19 @@ public class LoginActivity extends AppCompatActivity {
             @Override
             public void onResponse(Call<Container<UserDTO>> call, Response<Container<UserDTO>> response) {
                 if (response.isSuccessful()) {
-                    KeyPair newKeyPair = keyPairInterface.createOrGet(CryptoManager.genKeyPair(), response.body().getContent().getUid());
-                    userInterface.save(response.body().getContent(), accessToken);
-                    updatePublicKey(newKeyPair.getPublicKey());
-                    isLoading(false);
-                    Intent intent = new Intent(getApplicationContext(), MainActivity.class);
-                    startActivity(intent);
-                    finish();
+                    UserDTO userDto = response.body().getContent();
+                    KeyPair generatedKeyPair = CryptoManager.genKeyPair();
+                    databaseWriter.submit(() -> {
+                        KeyPair newKeyPair = keyPairInterface.createOrGet(generatedKeyPair, userDto.getUid());
+                        userInterface.save(userDto, accessToken);
+                        databaseWriter.afterCommit(() -> runOnUiThread(() -> {
+                            updatePublicKey(newKeyPair.getPublicKey());
+                            isLoading(false);
+                            Intent intent = new Intent(getApplicationContext(), MainActivity.class);
+                            startActivity(intent);
+                            finish();
+                        }));
+                    });
                 }
             }
 
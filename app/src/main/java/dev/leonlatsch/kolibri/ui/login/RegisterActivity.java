@@ -17,6 +17,7 @@ import dev.leonlatsch.kolibri.R;
 import dev.leonlatsch.kolibri.constants.Regex;
 import dev.leonlatsch.kolibri.constants.Responses;
 import dev.leonlatsch.kolibri.constants.Values;
+import dev.leonlatsch.kolibri.database.DatabaseWriter;
 import dev.leonlatsch.kolibri.database.interfaces.KeyPairInterface;
 import dev.leonlatsch.kolibri.database.interfaces.UserInterface;
 import dev.leonlatsch.kolibri.database.model.KeyPair;
@@ -52,6 +53,7 @@ public class RegisterActivity extends AppCompatActivity {
     private AuthService authService;
     private UserInterface userInterface;
     private KeyPairInterface keyPairInterface;
+    private DatabaseWriter databaseWriter;
 
     private boolean usernameValid;
     private boolean emailValid;
@@ -73,6 +75,7 @@ public class RegisterActivity extends AppCompatActivity {
         authService = RestServiceFactory.getAuthService();
         userInterface = UserInterface.getInstance();
         keyPairInterface = KeyPairInterface.getInstance();
+        databaseWriter = DatabaseWriter.getInstance();
 
         registerBtn.setOnClickListener(v -> register());
 
@@ -281,14 +284,18 @@ public class RegisterActivity extends AppCompatActivity {
             @Override
             public void onResponse(Call<Container<UserDTO>> call, Response<Container<UserDTO>> response) {
                 if (response.isSuccessful()) {
-                    keyPair.setUid(response.body().getContent().getUid());
-                    keyPairInterface.createOrGet(keyPair);
-                    userInterface.save(response.body().getContent(), accessToken);
-                    isLoading(false);
-                    Intent intent = new Intent(getApplicationContext(), MainActivity.class);
-                    intent.addFlags(Intent.FLAG_ACTIVITY_CLEAR_TASK | Intent.FLAG_ACTIVITY_NEW_TASK);
-                    startActivity(intent);
-                    finish();
+                    UserDTO userDto = response.body().getContent();
+                    keyPair.setUid(userDto.getUid());
+                    databaseWriter.submit(() -> {
+                        keyPairInterface.createOrGet(keyPair);
+                        userInterface.save(userDto, accessToken);
+                    }, () -> runOnUiThread(() -> {
+                        isLoading(false);
+                        Intent intent = new Intent(getApplicationContext(), MainActivity.class);
+                        intent.addFlags(Intent.FLAG_ACTIVITY_CLEAR_TASK | Intent.FLAG_ACTIVITY_NEW_TASK);
+                        startActivity(intent);
+                        finish();
+                    }));
                 }
             }
 
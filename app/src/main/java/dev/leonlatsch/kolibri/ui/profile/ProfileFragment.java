@@ -32,6 +32,7 @@ import dev.leonlatsch.kolibri.constants.Regex;
 import dev.leonlatsch.kolibri.constants.Responses;
 import dev.leonlatsch.kolibri.constants.Values;
 import dev.leonlatsch.kolibri.database.DatabaseMapper;
+import dev.leonlatsch.kolibri.database.DatabaseWriter;
 import dev.leonlatsch.kolibri.database.EntityChangedListener;
 import dev.leonlatsch.kolibri.database.interfaces.UserInterface;
 import dev.leonlatsch.kolibri.database.model.User;
@@ -63,6 +64,7 @@ public class ProfileFragment extends Fragment implements EntityChangedListener<U
     private String passwordCache;
 
     private DatabaseMapper databaseMapper = DatabaseMapper.getInstance();
+    private DatabaseWriter databaseWriter = DatabaseWriter.getInstance();
 
     private UserInterface userInterface;
     private UserService userService;
@@ -370,7 +372,8 @@ public class ProfileFragment extends Fragment implements EntityChangedListener<U
             @Override
             public void onResponse(Call<Container<UserDTO>> call, Response<Container<UserDTO>> response) {
                 if (response.isSuccessful()) {
-                    userInterface.save(response.body().getContent(), accessToken);
+                    UserDTO userDto = response.body().getContent();
+                    databaseWriter.submit(() -> userInterface.save(userDto, accessToken));
                 }
             }
 
@@ -401,8 +404,8 @@ public class ProfileFragment extends Fragment implements EntityChangedListener<U
      */
     private void mapUserToView(User user) {
         isReloadMode = true;
-        if (user.getProfilePicTn() != null) {
-            profilePicImageView.setImageBitmap(ImageUtil.createBitmap(user.getProfilePicTn()));
+        if (user.getProfilePicHash() != null) {
+            profilePicImageView.setImageBitmap(ImageUtil.loadAvatar(user.getProfilePicHash()));
         }
         usernameEditText.setText(user.getUsername());
         emailEditText.setText(user.getEmail());
@@ -449,7 +452,7 @@ public class ProfileFragment extends Fragment implements EntityChangedListener<U
     @Override
     public void entityChanged(User newEntity) {
         if (newEntity != null) {
-            mapUserToView(newEntity);
+            parent.runOnUiThread(() -> mapUserToView(newEntity)); // Saved on the DatabaseWriter
         }
     }
 
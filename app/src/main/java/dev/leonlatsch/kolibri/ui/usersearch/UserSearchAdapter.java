@@ -12,6 +12,7 @@ import java.util.List;
 
 import dev.leonlatsch.kolibri.R;
 import dev.leonlatsch.kolibri.rest.dto.UserDTO;
+import dev.leonlatsch.kolibri.util.AvatarLoader;
 import dev.leonlatsch.kolibri.util.ImageUtil;
 
 /**
@@ -24,11 +25,13 @@ public class UserSearchAdapter extends ArrayAdapter<UserDTO> {
 
     private List<UserDTO> dataset;
     private Context mContext;
+    private AvatarLoader avatarLoader;
 
     public UserSearchAdapter(Context context, List<UserDTO> users) {
         super(context, 0, users);
         this.dataset = users;
         this.mContext = context;
+        this.avatarLoader = AvatarLoader.getInstance();
     }
 
     @Override
@@ -46,11 +49,7 @@ public class UserSearchAdapter extends ArrayAdapter<UserDTO> {
             viewHolder = (ViewHolder) convertView.getTag();
         }
 
-        if (user.getProfilePicTn() != null) {
-            viewHolder.imageView.setImageBitmap(ImageUtil.createBitmap(user.getProfilePicTn()));
-        } else {
-            viewHolder.imageView.setImageDrawable(ImageUtil.getDefaultProfilePicTn(mContext));
-        }
+        avatarLoader.loadBase64(viewHolder.imageView, user.getProfilePicTn(), ImageUtil.getDefaultProfilePicTn(mContext));
         viewHolder.textView.setText(user.getUsername());
 
         return convertView;
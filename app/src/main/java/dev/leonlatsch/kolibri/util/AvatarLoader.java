@@ -0,0 +1,177 @@
+package dev.leonlatsch.kolibri.util;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.drawable.Drawable;
+import android.os.Handler;
+import android.os.Looper;
+import android.widget.ImageView;
+
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import dev.leonlatsch.kolibri.database.AvatarStore;
+
+/**
+ * Loads profile pictures into {@link ImageView}s on a background pool.
+ * <p>
+ * Images are decoded with a sample size matching the view and cached per size in the {@link BitmapCache}.
+ * Binding a view again cancels its previous load, so recycled list rows never show a stale picture
+ * and rows scrolled off screen don't keep the pool busy.
+ * Must be called on the main thread.
+ *
+ * @author Leon Latsch
+ * @since 1.0.0
+ */
+public class AvatarLoader {
+
+    private static final String THREAD_NAME = "AVATAR-LOADER-THREAD-";
+    private static final int POOL_SIZE = 2;
+    private static final int DEFAULT_SIZE_DP = 60; // Size of the list avatars
+    private static final String KEY_SEPARATOR = "@";
+
+    private static AvatarLoader avatarLoader; // Singleton
+
+    private final ExecutorService executor;
+    private final Handler mainHandler;
+    private final BitmapCache bitmapCache;
+
+    /**
+     * The running load of every view. Only accessed on the main thread.
+     */
+    private final Map<ImageView, Request> requests = new WeakHashMap<>();
+
+    private AvatarLoader() {
+        AtomicInteger threadCount = new AtomicInteger();
+        executor = Executors.newFixedThreadPool(POOL_SIZE, runnable -> {
+            Thread thread = new Thread(runnable, THREAD_NAME + threadCount.incrementAndGet());
+            thread.setPriority(Thread.MIN_PRIORITY);
+            return thread;
+        });
+        mainHandler = new Handler(Looper.getMainLooper());
+        bitmapCache = BitmapCache.getInstance();
+    }
+
+    public static AvatarLoader getInstance() {
+        if (avatarLoader == null) {
+            avatarLoader = new AvatarLoader();
+        }
+
+        return avatarLoader;
+    }
+
+    /**
+     * Load a thumbnail from the {@link AvatarStore}
+     *
+     * @param view
+     * @param hash        The hash saved in the row, may be null
+     * @param placeholder Shown while loading or if there is no picture
+     */
+    public void load(ImageView view, String hash, Drawable placeholder) {
+        load(view, hash, () -> AvatarStore.getInstance().get(hash), placeholder);
+    }
+
+    /**
+     * Load a thumbnail from a base64 String, eg. from a dto
+     *
+     * @param view
+     * @param base64      May be null
+     * @param placeholder Shown while loading or if there is no picture
+     */
+    public void loadBase64(ImageView view, String base64, Drawable placeholder) {
+        load(view, AvatarStore.hash(base64), () -> Base64.toBytes(base64), placeholder);
+    }
+
+    /**
+     * Cancel the running load of a view
+     *
+     * @param view
+     */
+    public void cancel(ImageView view) {
+        Request request = requests.remove(view);
+        if (request != null) {
+            request.future.cancel(true);
+        }
+    }
+
+    private void load(ImageView view, String hash, Source source, Drawable placeholder) {
+        cancel(view);
+        if (hash == null) {
+            view.setImageDrawable(placeholder);
+            return;
+        }
+
+        int size = targetSize(view);
+        String key = hash + KEY_SEPARATOR + size;
+        Bitmap cached = bitmapCache.get(key);
+        if (cached != null) {
+            view.setImageBitmap(cached);
+            return;
+        }
+
+        view.setImageDrawable(placeholder);
+        Request request = new Request();
+        requests.put(view, request);
+        request.future = executor.submit(() -> {
+            byte[] bytes = source.read();
+            if (bytes == null || Thread.currentThread().isInterrupted()) {
+                return;
+            }
+
+            Bitmap bitmap = decode(bytes, size);
+            if (bitmap != null) {
+                bitmapCache.put(key, bitmap);
+                mainHandler.post(() -> {
+                    if (requests.get(view) == request) { // The view was not bound to something else meanwhile
+                        requests.remove(view);
+                        view.setImageBitmap(bitmap);
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Decode an image with the largest power of two sample size that keeps it at least as big as the view
+     *
+     * @param bytes
+     * @param size  The size of the view in px
+     * @return The decoded Bitmap or null
+     */
+    private Bitmap decode(byte[] bytes, int size) {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeByteArray(bytes, 0, bytes.length, options);
+        if (options.outWidth <= 0 || options.outHeight <= 0) {
+            return null;
+        }
+
+        int sampleSize = 1;
+        while (options.outWidth / (sampleSize * 2) >= size && options.outHeight / (sampleSize * 2) >= size) {
+            sampleSize *= 2;
+        }
+
+        options.inJustDecodeBounds = false;
+        options.inSampleSize = sampleSize;
+        return BitmapFactory.decodeByteArray(bytes, 0, bytes.length, options);
+    }
+
+    private int targetSize(ImageView view) {
+        if (view.getWidth() > 0) {
+            return view.getWidth();
+        }
+        return Math.round(DEFAULT_SIZE_DP * view.getResources().getDisplayMetrics().density);
+    }
+
+    private interface Source {
+        byte[] read();
+    }
+
+    private static class Request {
+        Future<?> future;
+    }
+}
@@ -0,0 +1,100 @@
+package dev.leonlatsch.kolibri.util;
+
+import android.app.ActivityManager;
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.util.LruCache;
+
+/**
+ * Memory cache for decoded bitmaps, keyed by the hash of the image.
+ * <p>
+ * The budget is an eighth of the apps memory class and evicts the least recently used bitmaps.
+ * Misses fall back to the {@link dev.leonlatsch.kolibri.database.AvatarStore} on disk, so decoding from base64 is rare.
+ * Evicted bitmaps are never reused for decoding, because a view may still display them.
+ *
+ * @author Leon Latsch
+ * @since 1.0.0
+ */
+public class BitmapCache {
+
+    private static final int MEMORY_FRACTION = 8;
+
+    private static BitmapCache bitmapCache; // Singleton
+
+    private final LruCache<String, Bitmap> cache;
+
+    private BitmapCache(int maxBytes) {
+        cache = new LruCache<String, Bitmap>(maxBytes) {
+            @Override
+            protected int sizeOf(String key, Bitmap bitmap) {
+                return bitmap.getByteCount();
+            }
+        };
+    }
+
+    /**
+     * Initialize the cache with a budget derived from the memory class of the device
+     *
+     * @param context
+     */
+    public static synchronized void initialize(Context context) {
+        if (bitmapCache == null) {
+            ActivityManager activityManager = (ActivityManager) context.getSystemService(Context.ACTIVITY_SERVICE);
+            bitmapCache = new BitmapCache(activityManager.getMemoryClass() * 1024 * 1024 / MEMORY_FRACTION);
+        }
+    }
+
+    public static synchronized BitmapCache getInstance() {
+        if (bitmapCache == null) { // Not initialized, use the heap limit instead
+            bitmapCache = new BitmapCache((int) (Runtime.getRuntime().maxMemory() / MEMORY_FRACTION));
+        }
+
+        return bitmapCache;
+    }
+
+    public Bitmap get(String key) {
+        return key != null ? cache.get(key) : null;
+    }
+
+    public void put(String key, Bitmap bitmap) {
+        if (key != null && bitmap != null) {
+            cache.put(key, bitmap);
+        }
+    }
+
+    public void clear() {
+        cache.evictAll();
+    }
+
+    /**
+     * @return The share of lookups answered from memory, between 0 and 1
+     */
+    public float getHitRate() {
+        int hits = cache.hitCount();
+        int lookups = hits + cache.missCount();
+        return lookups > 0 ? (float) hits / lookups : 0;
+    }
+
+    public int getHits() {
+        return cache.hitCount();
+    }
+
+    public int getMisses() {
+        return cache.missCount();
+    }
+
+    public int getEvictions() {
+        return cache.evictionCount();
+    }
+
+    /**
+     * @return The bytes currently held
+     */
+    public int getSize() {
+        return cache.size();
+    }
+
+    public int getMaxSize() {
+        return cache.maxSize();
+    }
+}
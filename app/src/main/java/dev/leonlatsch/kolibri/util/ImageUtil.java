@@ -8,6 +8,7 @@ import android.graphics.drawable.Drawable;
 import java.io.ByteArrayOutputStream;
 
 import dev.leonlatsch.kolibri.R;
+import dev.leonlatsch.kolibri.database.AvatarStore;
 
 /**
  * A util class to load and convert images, drawables and bitmaps
@@ -18,12 +19,33 @@ import dev.leonlatsch.kolibri.R;
 public class ImageUtil {
 
     /**
-     * Generate a Bitmap from a base64 String
+     * Generate a Bitmap from a base64 String.
+     * Served from the {@link BitmapCache} if the same image was decoded before.
      *
      * @param base64
      * @return The generated Bitmap
      */
     public static Bitmap createBitmap(String base64) {
+        if (base64 == null) {
+            return null;
+        }
+        String hash = AvatarStore.hash(base64);
+        Bitmap bitmap = BitmapCache.getInstance().get(hash);
+        if (bitmap == null) {
+            byte[] bytes = Base64.toBytes(base64);
+            bitmap = BitmapFactory.decodeByteArray(bytes, 0, bytes.length);
+            BitmapCache.getInstance().put(hash, bitmap);
+        }
+        return bitmap;
+    }
+
+    /**
+     * Generate a Bitmap from a base64 String without caching it. Used for full size images that would evict many thumbnails.
+     *
+     * @param base64
+     * @return The generated Bitmap
+     */
+    public static Bitmap createUncachedBitmap(String base64) {
         if (base64 == null) {
             return null;
         }
@@ -31,6 +53,25 @@ public class ImageUtil {
         return BitmapFactory.decodeByteArray(bytes, 0, bytes.length);
     }
 
+    /**
+     * Load a profile picture thumbnail from the {@link BitmapCache} or else from the {@link AvatarStore}
+     *
+     * @param hash The hash saved in the row
+     * @return The generated Bitmap or null if the thumbnail is missing
+     */
+    public static Bitmap loadAvatar(String hash) {
+        Bitmap bitmap = BitmapCache.getInstance().get(hash);
+        if (bitmap == null) {
+            byte[] bytes = AvatarStore.getInstance().get(hash);
+            if (bytes == null) {
+                return null;
+            }
+            bitmap = BitmapFactory.decodeByteArray(bytes, 0, bytes.length);
+            BitmapCache.getInstance().put(hash, bitmap);
+        }
+        return bitmap;
+    }
+
     /**
      * Generate a base64 String from a Bitmap
      *
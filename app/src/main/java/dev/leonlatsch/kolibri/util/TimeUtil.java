@@ -0,0 +1,107 @@
+package dev.leonlatsch.kolibri.util;
+
+import android.util.LruCache;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+
+import dev.leonlatsch.kolibri.constants.Formats;
+
+/**
+ * Util for epoch millis timestamps.
+ * {@link SimpleDateFormat} is not thread safe, so every thread gets its own instances.
+ *
+ * @author Leon Latsch
+ * @since 1.0.0
+ */
+public class TimeUtil {
+
+    private static final Logger log = LoggerFactory.getLogger(TimeUtil.class);
+
+    private static final long MINUTE = 60 * 1000; // ms
+    private static final int DISPLAY_CACHE_SIZE = 256;
+
+    private static final ThreadLocal<SimpleDateFormat> dateFormat = new ThreadLocal<SimpleDateFormat>() {
+        @Override
+        protected SimpleDateFormat initialValue() {
+            return new SimpleDateFormat(Formats.DATE_FORMAT);
+        }
+    };
+
+    private static final ThreadLocal<SimpleDateFormat> timeFormat = new ThreadLocal<SimpleDateFormat>() {
+        @Override
+        protected SimpleDateFormat initialValue() {
+            return new SimpleDateFormat(Formats.TIME_FORMAT);
+        }
+    };
+
+    /**
+     * Formatted times per minute. All messages of the same minute share one string.
+     */
+    private static final LruCache<Long, String> displayCache = new LruCache<>(DISPLAY_CACHE_SIZE);
+
+    private TimeUtil() {
+    }
+
+    /**
+     * Parse a timestamp from the backend. Accepts epoch millis and the {@link Formats#DATE_FORMAT}.
+     *
+     * @param value
+     * @return The epoch millis or 0 if the value can't be parsed
+     */
+    public static long parse(String value) {
+        if (value == null || value.isEmpty()) {
+            return 0;
+        }
+
+        if (isDigits(value)) {
+            return Long.parseLong(value);
+        }
+
+        try {
+            return dateFormat.get().parse(value).getTime();
+        } catch (ParseException e) {
+            log.warn("Unparsable timestamp: " + value);
+            return 0;
+        }
+    }
+
+    /**
+     * Format a timestamp with the {@link Formats#DATE_FORMAT} for the backend
+     *
+     * @param millis
+     * @return
+     */
+    public static String format(long millis) {
+        return dateFormat.get().format(new Date(millis));
+    }
+
+    /**
+     * Format the time of a timestamp for displaying
+     *
+     * @param millis
+     * @return The time in the {@link Formats#TIME_FORMAT}
+     */
+    public static String formatTime(long millis) {
+        long minute = millis / MINUTE;
+        String formatted = displayCache.get(minute);
+        if (formatted == null) {
+            formatted = timeFormat.get().format(new Date(minute * MINUTE));
+            displayCache.put(minute, formatted);
+        }
+        return formatted;
+    }
+
+    private static boolean isDigits(String value) {
+        for (int i = 0; i < value.length(); i++) {
+            if (!Character.isDigit(value.charAt(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
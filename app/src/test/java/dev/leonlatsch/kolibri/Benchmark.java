@@ -0,0 +1,33 @@
+package dev.leonlatsch.kolibri;
+
+import org.junit.Assume;
+
+/**
+ * Switch for the benchmarks among the unit tests.
+ * They take long and their numbers only mean something on an idle machine, so they only run with
+ * {@code ./gradlew test -Pbenchmark}.
+ */
+public final class Benchmark {
+
+    private static final boolean ENABLED = Boolean.getBoolean("kolibri.benchmark");
+
+    private Benchmark() {
+    }
+
+    /**
+     * Skip the calling test unless benchmarks are enabled
+     */
+    public static void assumeEnabled() {
+        Assume.assumeTrue("Benchmarks only run with -Pbenchmark", ENABLED);
+    }
+
+    /**
+     * Print a result of a benchmark
+     *
+     * @param format
+     * @param args
+     */
+    public static void report(String format, Object... args) {
+        System.out.println(String.format(format, args));
+    }
+}
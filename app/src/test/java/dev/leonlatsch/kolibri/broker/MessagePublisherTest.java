@@ -0,0 +1,157 @@
+package dev.leonlatsch.kolibri.broker;
+
+import com.rabbitmq.client.AMQP;
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.ConfirmListener;
+import com.rabbitmq.client.ReturnListener;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import dev.leonlatsch.kolibri.database.model.MessageType;
+import dev.leonlatsch.kolibri.rest.dto.MessageDTO;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyBoolean;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * Tests the confirm and return handling of the {@link MessagePublisher} with a mocked {@link Channel}.
+ * The mock answers every publish like the broker would, before the publisher starts waiting.
+ */
+public class MessagePublisherTest {
+
+    private static final String EXCHANGE = "chat";
+
+    private enum Outcome {ACK, NACK, RETURN, DEFERRED}
+
+    private Channel channel;
+    private ConfirmListener confirmListener;
+    private ReturnListener returnListener;
+    private MessagePublisher publisher;
+
+    private final AtomicLong nextSeqNo = new AtomicLong(1);
+    private final Map<String, Outcome> outcomes = new HashMap<>();
+
+    @Before
+    public void setUp() throws IOException {
+        channel = mock(Channel.class);
+        when(channel.getNextPublishSeqNo()).thenAnswer(invocation -> nextSeqNo.get());
+        doAnswer(invocation -> {
+            String routingKey = invocation.getArgument(1);
+            AMQP.BasicProperties properties = invocation.getArgument(3);
+            long deliveryTag = nextSeqNo.getAndIncrement();
+            switch (outcomes.get(properties.getMessageId())) {
+                case ACK:
+                    confirmListener.handleAck(deliveryTag, false);
+                    break;
+                case NACK:
+                    confirmListener.handleNack(deliveryTag, false);
+                    break;
+                case RETURN: // The broker sends the return before the ack
+                    returnListener.handleReturn(312, "NO_ROUTE", EXCHANGE, routingKey, properties, invocation.getArgument(4));
+                    confirmListener.handleAck(deliveryTag, false);
+                    break;
+                default:
+                    break;
+            }
+            return null;
+        }).when(channel).basicPublish(anyString(), anyString(), anyBoolean(), any(AMQP.BasicProperties.class), any(byte[].class));
+
+        publisher = new MessagePublisher(channel, EXCHANGE);
+
+        ArgumentCaptor<ConfirmListener> confirmCaptor = ArgumentCaptor.forClass(ConfirmListener.class);
+        ArgumentCaptor<ReturnListener> returnCaptor = ArgumentCaptor.forClass(ReturnListener.class);
+        verify(channel).confirmSelect();
+        verify(channel).addConfirmListener(confirmCaptor.capture());
+        verify(channel).addReturnListener(returnCaptor.capture());
+        confirmListener = confirmCaptor.getValue();
+        returnListener = returnCaptor.getValue();
+    }
+
+    @Test
+    public void publish_returnsAckedMessages() throws Exception {
+        List<String> sent = publisher.publish(messages(Outcome.ACK, Outcome.ACK));
+
+        assertEquals(Arrays.asList("mid-0", "mid-1"), sent);
+        verify(channel, times(2)).basicPublish(eq(EXCHANGE), eq("to"), eq(true), any(AMQP.BasicProperties.class), any(byte[].class));
+    }
+
+    @Test
+    public void publish_stopsAtNackedMessage() throws Exception {
+        List<String> sent = publisher.publish(messages(Outcome.ACK, Outcome.NACK, Outcome.ACK));
+
+        // mid-2 is acked but sent again with mid-1, so it never arrives before mid-1
+        assertEquals(Collections.singletonList("mid-0"), sent);
+    }
+
+    @Test
+    public void publish_stopsAtReturnedMessage() throws Exception {
+        List<String> sent = publisher.publish(messages(Outcome.ACK, Outcome.RETURN, Outcome.ACK));
+
+        assertEquals(Collections.singletonList("mid-0"), sent);
+    }
+
+    @Test
+    public void publish_handlesMultipleAck() throws Exception {
+        List<MessageDTO> messages = messages(Outcome.DEFERRED, Outcome.DEFERRED, Outcome.DEFERRED);
+        doAnswer(invocation -> {
+            long deliveryTag = nextSeqNo.getAndIncrement();
+            if (deliveryTag == 3) {
+                confirmListener.handleAck(deliveryTag, true); // Confirms all three
+            }
+            return null;
+        }).when(channel).basicPublish(anyString(), anyString(), anyBoolean(), any(AMQP.BasicProperties.class), any(byte[].class));
+
+        List<String> sent = publisher.publish(messages);
+
+        assertEquals(Arrays.asList("mid-0", "mid-1", "mid-2"), sent);
+    }
+
+    @Test
+    public void publish_forgetsStateOfPreviousBatch() throws Exception {
+        publisher.publish(messages(Outcome.RETURN));
+
+        // The same mid acked in a later batch counts as sent
+        List<String> sent = publisher.publish(messages(Outcome.ACK));
+
+        assertEquals(Collections.singletonList("mid-0"), sent);
+    }
+
+    @Test
+    public void publish_returnsNullIfChannelFails() throws Exception {
+        doThrow(new IOException("closed")).when(channel)
+                .basicPublish(anyString(), anyString(), anyBoolean(), any(AMQP.BasicProperties.class), any(byte[].class));
+
+        assertNull(publisher.publish(messages(Outcome.ACK)));
+    }
+
+    private List<MessageDTO> messages(Outcome... outcomes) {
+        List<MessageDTO> messages = new ArrayList<>();
+        for (int i = 0; i < outcomes.length; i++) {
+            String mid = "mid-" + i;
+            this.outcomes.put(mid, outcomes[i]);
+            messages.add(new MessageDTO(mid, "from", "to", MessageType.TEXT, "0", "content"));
+        }
+        return messages;
+    }
+}
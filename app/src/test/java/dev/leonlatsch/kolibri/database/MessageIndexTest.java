@@ -0,0 +1,189 @@
+package dev.leonlatsch.kolibri.database;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Random;
+
+import dev.leonlatsch.kolibri.Benchmark;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Runs the queries of the {@link MessageIndex} on the host SQLite.
+ * The benchmark searches a large message table. Its amount of messages is set with -Dkolibri.benchmark.messages,
+ * the default is one million.
+ */
+public class MessageIndexTest {
+
+    private static final int MESSAGES = Integer.getInteger("kolibri.benchmark.messages", 1000000);
+    private static final int CHUNK_SIZE = 50000;
+    private static final int CHATS = 200;
+    private static final int RUNS = 5;
+    private static final int PAGE_SIZE = 20;
+
+    private static final String[] WORDS = {"hello", "world", "meeting", "tomorrow", "lunch", "coffee", "train",
+            "weekend", "birthday", "holiday", "project", "deadline", "movie", "dinner", "football", "concert",
+            "airport", "doctor", "present", "picture"};
+
+    private Connection connection;
+
+    @Before
+    public void setUp() throws SQLException {
+        connection = DriverManager.getConnection("jdbc:sqlite::memory:");
+        try (Statement statement = connection.createStatement()) {
+            statement.execute("CREATE TABLE message (Id INTEGER PRIMARY KEY AUTOINCREMENT, mid TEXT, cid TEXT,"
+                    + " content TEXT, timestamp_ms INTEGER)");
+            statement.execute(MessageIndex.CREATE_TABLE);
+        }
+        connection.setAutoCommit(false);
+    }
+
+    @After
+    public void tearDown() throws SQLException {
+        connection.close();
+    }
+
+    @Test
+    public void search_ranksMoreMatchingWordsFirst() throws SQLException {
+        insert("best", "zebra yak", 1);
+        insert("newer", "zebra only", 2);
+
+        try (PreparedStatement search = prepareSearch(MessageIndex.toMatchExpression("zeb ya"), 0)) {
+            ResultSet result = search.executeQuery();
+            assertTrue(result.next());
+            assertEquals("best", result.getString(1));
+            assertTrue(result.getString(4).contains("[zebra]"));
+            assertFalse(result.next()); // Every word must match
+        }
+
+        try (PreparedStatement search = prepareSearch(MessageIndex.toMatchExpression("zebra"), 0)) {
+            ResultSet result = search.executeQuery();
+            assertTrue(result.next());
+            assertEquals("newer", result.getString(1)); // Same amount of matches, newer first
+        }
+    }
+
+    @Test
+    public void search_ranksByMatchCountNotByOffsets() throws SQLException {
+        StringBuilder far = new StringBuilder();
+        while (far.length() < 100000) {
+            far.append("filler ");
+        }
+        insert("far", far + "zebra zebra", 2); // Two matches with six digit offsets
+        insert("most", "zebra zebra zebra", 1);
+
+        try (PreparedStatement search = prepareSearch(MessageIndex.toMatchExpression("zebra"), 0)) {
+            ResultSet result = search.executeQuery();
+            assertTrue(result.next());
+            assertEquals("most", result.getString(1));
+            assertTrue(result.next());
+            assertEquals("far", result.getString(1));
+        }
+    }
+
+    @Test
+    public void search_isFastOnManyMessages() throws SQLException {
+        Benchmark.assumeEnabled();
+        insertRandomMessages();
+
+        long start = System.nanoTime();
+        try (PreparedStatement index = connection.prepareStatement(MessageIndex.INDEX_CHUNK)) {
+            for (long from = 0; from < MESSAGES; from += CHUNK_SIZE) {
+                index.setLong(1, from);
+                index.setLong(2, from + CHUNK_SIZE);
+                index.executeUpdate();
+                connection.commit(); // One transaction per chunk like the catch up
+            }
+        }
+        long indexMs = (System.nanoTime() - start) / 1000000;
+
+        String[] queries = {"hello1", "meeting tomorrow", "coffee4", "birthday present1", "deadline"};
+        for (String query : queries) {
+            String match = MessageIndex.toMatchExpression(query);
+            search(match, 0); // Warm up
+
+            long total = 0;
+            int hits = 0;
+            for (int run = 0; run < RUNS; run++) {
+                long runStart = System.nanoTime();
+                hits = search(match, run * PAGE_SIZE);
+                total += System.nanoTime() - runStart;
+            }
+            Benchmark.report("%,d messages, query '%s': %.2f ms per page", MESSAGES, query,
+                    total / (double) RUNS / 1000000);
+            assertEquals(PAGE_SIZE, hits);
+        }
+        Benchmark.report("Indexed %,d messages in %d ms", MESSAGES, indexMs);
+    }
+
+    private void insertRandomMessages() throws SQLException {
+        Random random = new Random(42);
+        try (PreparedStatement insert = connection.prepareStatement(
+                "INSERT INTO message (mid, cid, content, timestamp_ms) VALUES (?, ?, ?, ?)")) {
+            for (int i = 0; i < MESSAGES; i++) {
+                StringBuilder content = new StringBuilder();
+                int words = 3 + random.nextInt(10);
+                for (int w = 0; w < words; w++) {
+                    content.append(w == 0 ? "" : " ").append(WORDS[random.nextInt(WORDS.length)]).append(random.nextInt(500));
+                }
+                insert.setString(1, "mid-" + i);
+                insert.setString(2, "cid-" + random.nextInt(CHATS));
+                insert.setString(3, content.toString());
+                insert.setLong(4, 1500000000000L + i * 1000L);
+                insert.addBatch();
+                if (i % CHUNK_SIZE == CHUNK_SIZE - 1) {
+                    insert.executeBatch();
+                }
+            }
+            insert.executeBatch();
+        }
+        connection.commit();
+    }
+
+    /**
+     * Insert a message and index it right away
+     */
+    private void insert(String mid, String content, long timestamp) throws SQLException {
+        try (PreparedStatement insert = connection.prepareStatement(
+                "INSERT INTO message (mid, cid, content, timestamp_ms) VALUES (?, 'cid-0', ?, ?)")) {
+            insert.setString(1, mid);
+            insert.setString(2, content);
+            insert.setLong(3, timestamp);
+            insert.executeUpdate();
+        }
+        try (PreparedStatement index = connection.prepareStatement(
+                "INSERT INTO message_fts(docid, body) SELECT Id, content FROM message WHERE mid = ?")) {
+            index.setString(1, mid);
+            index.executeUpdate();
+        }
+        connection.commit();
+    }
+
+    private int search(String match, int offset) throws SQLException {
+        int hits = 0;
+        try (PreparedStatement search = prepareSearch(match, offset); ResultSet result = search.executeQuery()) {
+            while (result.next()) {
+                hits++;
+            }
+        }
+        return hits;
+    }
+
+    private PreparedStatement prepareSearch(String match, int offset) throws SQLException {
+        PreparedStatement search = connection.prepareStatement(MessageIndex.SEARCH);
+        search.setString(1, match);
+        search.setInt(2, PAGE_SIZE);
+        search.setInt(3, offset);
+        return search;
+    }
+}
@@ -0,0 +1,176 @@
+package dev.leonlatsch.kolibri.database.interfaces;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks with EXPLAIN QUERY PLAN that the message queries of the {@link ChatInterface} are read from
+ * the (cid, timestamp) index without sorting. The schema matches the one ActiveAndroid creates for the models.
+ * The Id is the rowid, so the index is ordered by (cid, timestamp, Id).
+ */
+public class MessagePageQueryPlanTest {
+
+    private static final String INDEX = "index_message_cid_timestamp_ms";
+    private static final String TIMESTAMP = "timestamp_ms";
+    private static final String TIMESTAMP_TYPE = "INTEGER";
+    private static final int CHATS = 50;
+    private static final int MESSAGES_PER_CHAT = 200;
+    private static final int PAGE_SIZE = 30;
+
+    private Connection connection;
+
+    @Before
+    public void setUp() throws SQLException {
+        connection = DriverManager.getConnection("jdbc:sqlite::memory:");
+        try (Statement statement = connection.createStatement()) {
+            statement.execute("CREATE TABLE message (Id INTEGER PRIMARY KEY AUTOINCREMENT, mid TEXT UNIQUE ON CONFLICT FAIL,"
+                    + " cid TEXT, uid_from TEXT, uid_to TEXT, type TEXT, " + TIMESTAMP + " " + TIMESTAMP_TYPE + ","
+                    + " content TEXT, sent INTEGER, delivery_state TEXT, attempts INTEGER, next_attempt INTEGER)");
+            statement.execute("CREATE INDEX index_message_mid ON message(mid)");
+            statement.execute("CREATE INDEX " + INDEX + " ON message(cid, " + TIMESTAMP + ")");
+            statement.execute("CREATE INDEX index_message_sent ON message(sent)");
+            statement.execute("CREATE INDEX index_message_delivery_state ON message(delivery_state)");
+        }
+
+        connection.setAutoCommit(false);
+        try (PreparedStatement insert = connection.prepareStatement("INSERT INTO message (mid, cid, "
+                + TIMESTAMP + ", content, sent, delivery_state) VALUES (?, ?, ?, ?, 1, 'SENT')")) {
+            for (int i = 0; i < CHATS * MESSAGES_PER_CHAT; i++) {
+                insert.setString(1, "mid-" + i);
+                insert.setString(2, "cid-" + (i % CHATS));
+                insert.setObject(3, timestamp(i / 3)); // Some messages share a timestamp
+                insert.setString(4, "message " + i);
+                insert.addBatch();
+            }
+            insert.executeBatch();
+        }
+        connection.commit();
+    }
+
+    @After
+    public void tearDown() throws SQLException {
+        connection.close();
+    }
+
+    @Test
+    public void lastMessage_usesIndex() throws SQLException {
+        String sql = "SELECT * FROM message WHERE " + ChatInterface.QUEUE_CID_WHERE
+                + " ORDER BY " + ChatInterface.ORDER_NEWEST_FIRST + " LIMIT 1";
+        assertUsesIndex(sql, "cid-1");
+        analyze();
+        assertUsesIndex(sql, "cid-1");
+    }
+
+    @Test
+    public void newestMessages_useIndex() throws SQLException {
+        assertUsesIndex(newestPageSql(), "cid-1");
+        analyze();
+        assertUsesIndex(newestPageSql(), "cid-1");
+    }
+
+    @Test
+    public void messagesBefore_useIndex() throws SQLException {
+        assertUsesIndex(beforePageSql(), "cid-1", timestamp(50), timestamp(50), 4000);
+        analyze();
+        assertUsesIndex(beforePageSql(), "cid-1", timestamp(50), timestamp(50), 4000);
+    }
+
+    @Test
+    public void messagesAfter_useIndex() throws SQLException {
+        String sql = "SELECT * FROM message WHERE " + ChatInterface.QUEUE_MESSAGES_AFTER_WHERE
+                + " ORDER BY " + ChatInterface.ORDER_OLDEST_FIRST + " LIMIT " + PAGE_SIZE;
+        assertUsesIndex(sql, "cid-1", timestamp(50), timestamp(50), 4000);
+        analyze();
+        assertUsesIndex(sql, "cid-1", timestamp(50), timestamp(50), 4000);
+    }
+
+    @Test
+    public void messagesBefore_pagesThroughAllMessages() throws SQLException {
+        List<Long> ids = new ArrayList<>();
+        List<Object[]> page = query(newestPageSql(), "cid-7");
+        while (!page.isEmpty()) {
+            for (Object[] row : page) {
+                ids.add((Long) row[0]);
+            }
+            Object[] oldest = page.get(page.size() - 1);
+            page = query(beforePageSql(), "cid-7", oldest[1], oldest[1], oldest[0]);
+        }
+
+        assertEquals(MESSAGES_PER_CHAT, ids.size());
+        for (int i = 1; i < ids.size(); i++) {
+            assertTrue(ids.get(i) < ids.get(i - 1)); // No gaps or duplicates on equal timestamps
+        }
+    }
+
+    private static Object timestamp(int second) {
+        return 1000L * second;
+    }
+
+    private static String newestPageSql() {
+        return "SELECT * FROM message WHERE " + ChatInterface.QUEUE_CID_WHERE
+                + " ORDER BY " + ChatInterface.ORDER_NEWEST_FIRST + " LIMIT " + PAGE_SIZE;
+    }
+
+    private static String beforePageSql() {
+        return "SELECT * FROM message WHERE " + ChatInterface.QUEUE_MESSAGES_BEFORE_WHERE
+                + " ORDER BY " + ChatInterface.ORDER_NEWEST_FIRST + " LIMIT " + PAGE_SIZE;
+    }
+
+    private void assertUsesIndex(String sql, Object... args) throws SQLException {
+        StringBuilder plan = new StringBuilder();
+        try (PreparedStatement explain = connection.prepareStatement("EXPLAIN QUERY PLAN " + sql)) {
+            bind(explain, args);
+            try (ResultSet result = explain.executeQuery()) {
+                while (result.next()) {
+                    plan.append(result.getString("detail")).append('\n');
+                }
+            }
+        }
+
+        assertTrue(plan.toString(), plan.toString().contains("USING INDEX " + INDEX + " "));
+        assertFalse(plan.toString(), plan.toString().contains("TEMP B-TREE"));
+    }
+
+    /**
+     * @return Id and timestamp of every row
+     */
+    private List<Object[]> query(String sql, Object... args) throws SQLException {
+        List<Object[]> rows = new ArrayList<>();
+        try (PreparedStatement select = connection.prepareStatement(sql)) {
+            bind(select, args);
+            try (ResultSet result = select.executeQuery()) {
+                while (result.next()) {
+                    rows.add(new Object[]{result.getLong("Id"), result.getObject(TIMESTAMP)});
+                }
+            }
+        }
+        return rows;
+    }
+
+    private void bind(PreparedStatement statement, Object... args) throws SQLException {
+        for (int i = 0; i < args.length; i++) {
+            statement.setObject(i + 1, args[i]);
+        }
+    }
+
+    private void analyze() throws SQLException {
+        try (Statement statement = connection.createStatement()) {
+            statement.execute("ANALYZE");
+        }
+        connection.commit();
+    }
+}
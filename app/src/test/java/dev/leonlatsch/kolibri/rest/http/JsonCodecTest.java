@@ -0,0 +1,100 @@
+package dev.leonlatsch.kolibri.rest.http;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.charset.StandardCharsets;
+
+import dev.leonlatsch.kolibri.Benchmark;
+import dev.leonlatsch.kolibri.database.model.MessageType;
+import dev.leonlatsch.kolibri.rest.dto.MessageDTO;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Compares the {@link JsonCodec} with the previous decoding of broker deliveries,
+ * which created a new {@link ObjectMapper} and a String per delivery.
+ */
+public class JsonCodecTest {
+
+    private static final int MESSAGES = 20000;
+    private static final int WARM_UP = 2000;
+
+    private static final byte[] BODY = ("{\"mid\":\"mid-1\",\"from\":\"uid-1\",\"to\":\"uid-2\",\"type\":\"TEXT\","
+            + "\"timestamp\":\"2019-01-01 12:00:00\",\"content\":\"h\u00e9llo w\u00f6rld \u2764\"}").getBytes(StandardCharsets.UTF_8);
+
+    @Test
+    public void readMessage_matchesPreviousDecoding() throws IOException {
+        MessageDTO expected = decodePrevious(BODY);
+        MessageDTO actual = JsonCodec.readMessage(BODY);
+
+        assertEquals(expected.getMid(), actual.getMid());
+        assertEquals(expected.getFrom(), actual.getFrom());
+        assertEquals(expected.getTo(), actual.getTo());
+        assertEquals(MessageType.TEXT, actual.getType());
+        assertEquals(expected.getTimestamp(), actual.getTimestamp());
+        assertEquals("h\u00e9llo w\u00f6rld \u2764", actual.getContent());
+    }
+
+    @Test(expected = IOException.class)
+    public void readMessage_rejectsInvalidBody() throws IOException {
+        JsonCodec.readMessage("{\"mid\":".getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Time and allocated bytes per message of both paths. Reported, not asserted, because both depend on the machine.
+     */
+    @Test
+    public void readMessage_comparedToPreviousDecoding() throws IOException {
+        Benchmark.assumeEnabled();
+        for (int i = 0; i < WARM_UP; i++) {
+            decodePrevious(BODY);
+            JsonCodec.readMessage(BODY);
+        }
+
+        long[] previous = measure(() -> decodePrevious(BODY));
+        long[] codec = measure(() -> JsonCodec.readMessage(BODY));
+
+        Benchmark.report("Decoding %,d messages, previous: %,d ns and %,d bytes per message", MESSAGES,
+                previous[0] / MESSAGES, previous[1] / MESSAGES);
+        Benchmark.report("Decoding %,d messages, JsonCodec: %,d ns and %,d bytes per message", MESSAGES,
+                codec[0] / MESSAGES, codec[1] / MESSAGES);
+    }
+
+    /**
+     * @param decoder
+     * @return The ns and the bytes allocated by this thread for {@link #MESSAGES} runs, bytes are negative if unsupported
+     * @throws IOException
+     */
+    private static long[] measure(Decoder decoder) throws IOException {
+        long threadId = Thread.currentThread().getId();
+        long bytesBefore = allocatedBytes(threadId);
+        long start = System.nanoTime();
+        for (int i = 0; i < MESSAGES; i++) {
+            decoder.decode();
+        }
+        long time = System.nanoTime() - start;
+        long bytes = allocatedBytes(threadId) - bytesBefore;
+        return new long[]{time, bytesBefore < 0 ? -1 : bytes};
+    }
+
+    private static long allocatedBytes(long threadId) {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        if (threads instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean) threads).getThreadAllocatedBytes(threadId);
+        }
+        return -1;
+    }
+
+    private static MessageDTO decodePrevious(byte[] body) throws IOException {
+        return new ObjectMapper().readValue(new String(body, StandardCharsets.UTF_8), MessageDTO.class);
+    }
+
+    private interface Decoder {
+        void decode() throws IOException;
+    }
+}
@@ -0,0 +1,160 @@
+package dev.leonlatsch.kolibri.rest.service;
+
+import com.fasterxml.jackson.databind.JsonNode;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import dev.leonlatsch.kolibri.Benchmark;
+import dev.leonlatsch.kolibri.database.model.MessageType;
+import dev.leonlatsch.kolibri.rest.dto.Container;
+import dev.leonlatsch.kolibri.rest.dto.MessageDTO;
+import dev.leonlatsch.kolibri.rest.dto.SendResultDTO;
+import dev.leonlatsch.kolibri.rest.http.Headers;
+import dev.leonlatsch.kolibri.rest.http.JsonCodec;
+import okhttp3.mockwebserver.Dispatcher;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.RecordedRequest;
+import retrofit2.Response;
+import retrofit2.Retrofit;
+import retrofit2.converter.jackson.JacksonConverterFactory;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Runs the {@link ChatService} against a stand-in backend, with the same converter as the {@link RestServiceFactory}.
+ * Checks the requests the outbox sends and that it can read the answers it decides on.
+ * Every response of the throughput comparison is delayed by a fixed latency like a mobile network.
+ */
+public class ChatServiceTest {
+
+    private static final String ACCESS_TOKEN = "token";
+    private static final int OUTBOX_SIZE = 20;
+    private static final long LATENCY_MS = 25;
+
+    private MockWebServer server;
+    private ChatService chatService;
+
+    @Before
+    public void setUp() throws IOException {
+        server = new MockWebServer();
+        server.start();
+        chatService = new Retrofit.Builder()
+                .baseUrl(server.url("/"))
+                .addConverterFactory(JacksonConverterFactory.create(JsonCodec.getObjectMapper()))
+                .build()
+                .create(ChatService.class);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        server.shutdown();
+    }
+
+    @Test
+    public void sendBatch_sendsAllMessagesInOneRequest() throws Exception {
+        server.enqueue(new MockResponse().setBody("{\"code\":200,\"content\":["
+                + "{\"mid\":\"mid-1\",\"sent\":true},{\"mid\":\"mid-2\",\"sent\":false}]}"));
+
+        Response<Container<List<SendResultDTO>>> response = chatService.sendBatch(ACCESS_TOKEN,
+                Arrays.asList(message("mid-1"), message("mid-2"))).execute();
+
+        RecordedRequest request = server.takeRequest();
+        assertEquals("PUT", request.getMethod());
+        assertEquals("/api/v1/chat/send/batch", request.getPath());
+        assertEquals(ACCESS_TOKEN, request.getHeader(Headers.ACCESS_TOKEN));
+        JsonNode body = JsonCodec.getObjectMapper().readTree(request.getBody().readUtf8());
+        assertEquals(2, body.size());
+        assertEquals("mid-1", body.get(0).get("mid").asText());
+        assertEquals("mid-2", body.get(1).get("mid").asText());
+        assertEquals(1, server.getRequestCount());
+
+        List<SendResultDTO> results = response.body().getContent();
+        assertEquals(2, results.size());
+        assertEquals("mid-1", results.get(0).getMid());
+        assertTrue(results.get(0).isSent());
+        assertFalse(results.get(1).isSent()); // Retried by the outbox
+    }
+
+    @Test
+    public void sendBatch_exposesMissingEndpoint() throws Exception {
+        server.enqueue(new MockResponse().setResponseCode(404));
+
+        Response<Container<List<SendResultDTO>>> response = chatService.sendBatch(ACCESS_TOKEN,
+                Arrays.asList(message("mid-1"))).execute();
+
+        assertEquals(404, response.code()); // The outbox falls back to single sends
+    }
+
+    @Test
+    public void send_setsIdempotencyKey() throws Exception {
+        server.enqueue(new MockResponse().setBody("{\"code\":200}"));
+        server.enqueue(new MockResponse().setBody("{\"code\":200}"));
+
+        chatService.send(ACCESS_TOKEN, "mid-1", message("mid-1")).execute();
+        chatService.send(ACCESS_TOKEN, "mid-1", message("mid-1")).execute(); // A resend after a lost response
+
+        for (int i = 0; i < 2; i++) {
+            RecordedRequest request = server.takeRequest();
+            assertEquals("/api/v1/chat/send", request.getPath());
+            assertEquals("mid-1", request.getHeader(Headers.IDEMPOTENCY_KEY));
+        }
+    }
+
+    @Test
+    public void sendBatch_needsOneRoundTripForTheWholeOutbox() throws Exception {
+        server.setDispatcher(new Dispatcher() {
+            @Override
+            public MockResponse dispatch(RecordedRequest request) {
+                String body = "{\"code\":200}";
+                if (request.getPath().endsWith("/batch")) {
+                    StringBuilder results = new StringBuilder();
+                    for (int i = 0; i < OUTBOX_SIZE; i++) {
+                        results.append(i == 0 ? "" : ",").append("{\"mid\":\"mid-").append(i).append("\",\"sent\":true}");
+                    }
+                    body = "{\"code\":200,\"content\":[" + results + "]}";
+                }
+                return new MockResponse().setBody(body).setHeadersDelay(LATENCY_MS, TimeUnit.MILLISECONDS);
+            }
+        });
+        List<MessageDTO> outbox = new ArrayList<>();
+        for (int i = 0; i < OUTBOX_SIZE; i++) {
+            outbox.add(message("mid-" + i));
+        }
+
+        long start = System.nanoTime();
+        for (MessageDTO dto : outbox) {
+            assertTrue(chatService.send(ACCESS_TOKEN, dto.getMid(), dto).execute().isSuccessful());
+        }
+        long singleNanos = System.nanoTime() - start;
+        int singleRequests = server.getRequestCount();
+
+        start = System.nanoTime();
+        Response<Container<List<SendResultDTO>>> response = chatService.sendBatch(ACCESS_TOKEN, outbox).execute();
+        long batchNanos = System.nanoTime() - start;
+        int batchRequests = server.getRequestCount() - singleRequests;
+
+        assertEquals(OUTBOX_SIZE, response.body().getContent().size());
+        assertEquals(OUTBOX_SIZE, singleRequests);
+        assertEquals(1, batchRequests);
+        assertTrue(singleNanos >= OUTBOX_SIZE * TimeUnit.MILLISECONDS.toNanos(LATENCY_MS));
+        assertTrue(batchNanos < singleNanos);
+        Benchmark.report("%d messages with %d ms latency: %d requests in %.1f msg/s one by one, %d request in %.1f msg/s as batch",
+                OUTBOX_SIZE, LATENCY_MS, singleRequests, OUTBOX_SIZE * 1e9 / singleNanos,
+                batchRequests, OUTBOX_SIZE * 1e9 / batchNanos);
+    }
+
+    private static MessageDTO message(String mid) {
+        return new MessageDTO(mid, "from", "to", MessageType.TEXT, "2019-01-01 12:00:00", "content");
+    }
+}